@@ -1,10 +1,13 @@
 package de.hsrt.meti.pms.core;
 
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 import java.util.ServiceLoader;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 
 
@@ -13,12 +16,39 @@ public interface EventStore
 
   Patient process(Patient.Command cmd) throws Exception;
 
+  // Optimistic concurrency control: process the Command only if the Patient is still at the expected version,
+  // i.e. the number of its events (0 for a Create), or else throw a java.util.ConcurrentModificationException.
+  // process(cmd) instead applies the Command to whatever version is current
+  Patient process(Patient.Command cmd, int expectedVersion) throws Exception;
+
+  // Current version of the Patient, see process(cmd,expectedVersion)
+  Optional<Integer> patientVersion(Id<Patient> id);
+
+  // Implementations may update the state read by findPatient(s)(...) asynchronously after process(...) returned:
+  // the lag is the current delay of these updates, and awaitVersion(...) waits until the given version
+  // of the Patient can be read (read-your-writes). By default, updates are synchronous
+  default Duration projectionLag(){
+    return Duration.ZERO;
+  }
+
+  default void awaitVersion(Id<Patient> id, int version, Duration timeout) throws InterruptedException, TimeoutException {
+  }
+
   Optional<Patient> findPatient(Id<Patient> id);
 
   Optional<Patient> stateOfPatientAt(Id<Patient> id, Instant t);
 
   List<Patient> findPatients(Patient.Filter filter);
 
+  // States as of time t of all Patients matching the filter at that time (e.g. for reports on past dates),
+  // i.e. the bulk variant of stateOfPatientAt(...), which findPatients(...) is for the current states
+  List<Patient> findPatientsAt(Patient.Filter filter, Instant t);
+
+  // See Repository.streamPatients(...): the Stream must be closed
+  default Stream<Patient> streamPatients(Patient.Filter filter){
+    return findPatients(filter).stream();
+  }
+
 
   /* --------------------------------------------------------------------------
     Service Provider Interface (SPI) pattern for dependency loading
@@ -32,10 +62,18 @@ public interface EventStore
   }
 
 
+  // Returns the first EventStore implementation found, unless a specific one is selected
+  // by its Provider class name, e.g. -Dpms.es.provider=de.hsrt.meti.pms.es.log.SegmentLogEventStore$Provider
   public static EventStore getInstance(){
+
+    var selected = Optional.ofNullable(System.getProperty("pms.es.provider"));
+
     return ServiceLoader.load(Provider.class)
-      .iterator()
-      .next()
+      .stream()
+      .filter(p -> selected.map(name -> p.type().getName().equals(name)).orElse(true))
+      .findFirst()
+      .orElseThrow()
+      .get()
       .getInstance();
   }
 
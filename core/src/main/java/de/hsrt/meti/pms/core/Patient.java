@@ -3,9 +3,13 @@ package de.hsrt.meti.pms.core;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.Optional;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonFormat;
 
@@ -100,6 +104,154 @@ public record Patient
         Optional.empty(),
         Optional.empty()
       );
+
+    /*
+      The meaning of the criteria, which all Repository and EventStore implementations follow,
+      and which those that filter in memory use directly:
+      gender one of the set, birthDate within the period, familyName, street and city containing the given values;
+      all case-sensitive.
+    */
+    public boolean matches(Patient patient){
+      return
+        gender.map(set -> set.contains(patient.gender())).orElse(true) &&
+        familyName.map(name -> patient.familyName().contains(name)).orElse(true) &&
+        birthDatePeriod.map(period -> period.contains(patient.birthDate(),Comparator.naturalOrder())).orElse(true) &&
+        address.map(
+          a ->
+            a.street().map(s -> patient.address().street().contains(s)).orElse(true) &&
+            a.city().map(c -> patient.address().city().contains(c)).orElse(true)
+        ).orElse(true);
+    }
+  }
+
+
+  /*
+    Keyset pagination: Patients are ordered by the sort key, then by ID (to make the order total),
+    and a page continues after the position of the last Patient of the previous page, as given by the cursor,
+    instead of skipping an offset, so that a page costs the same however deep it is.
+    The cursor is opaque to clients, which just pass on Page.next() of the previous page.
+  */
+  public static final record PageRequest
+  (
+    SortKey sortKey,
+    int limit,
+    Optional<String> cursor
+  )
+  {
+    public static enum SortKey
+    {
+      FAMILY_NAME, BIRTH_DATE;
+
+      public Comparator<Patient> order(){
+        return switch(this){
+          case FAMILY_NAME -> Comparator.comparing(Patient::familyName).thenComparing(p -> p.id().value());
+          case BIRTH_DATE  -> Comparator.comparing(Patient::birthDate).thenComparing(p -> p.id().value());
+        };
+      }
+    }
+
+    // Position after which a page starts: sort key value (String or LocalDate) and ID of the last Patient
+    public static record Position(Object value, Id<Patient> id){}
+
+
+    public PageRequest {
+      if (limit < 1) throw new IllegalArgumentException("Page limit must be positive");
+    }
+
+    public static PageRequest first(SortKey sortKey, int limit){
+      return new PageRequest(sortKey,limit,Optional.empty());
+    }
+
+    public PageRequest next(Page page){
+      return new PageRequest(sortKey,limit,page.next());
+    }
+
+
+    public Object sortValue(Patient patient){
+      return switch(sortKey){
+        case FAMILY_NAME -> patient.familyName();
+        case BIRTH_DATE  -> patient.birthDate();
+      };
+    }
+
+    public Comparator<Patient> order(){
+      return sortKey.order();
+    }
+
+    public Optional<Position> after(){
+      return cursor.map(
+        c -> {
+          var parts = new String(Base64.getUrlDecoder().decode(c),UTF_8).split("\n",3);
+          if (parts.length != 3 || !parts[0].equals(sortKey.name())){
+            throw new IllegalArgumentException("Invalid cursor for sort key " + sortKey);
+          }
+          return new Position(
+            sortKey == SortKey.BIRTH_DATE ? LocalDate.parse(parts[1]) : parts[1],
+            new Id<>(parts[2])
+          );
+        }
+      );
+    }
+
+    private String cursorOf(Patient patient){
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(
+        (sortKey.name() + "\n" + sortValue(patient) + "\n" + patient.id().value()).getBytes(UTF_8)
+      );
+    }
+
+    // Predicate whether a Patient comes after the cursor position in sort order (for in-memory paging)
+    public Predicate<Patient> afterCursor(){
+      return after().<Predicate<Patient>>map(
+        pos ->
+          patient -> {
+            var c = switch(sortKey){
+              case FAMILY_NAME -> patient.familyName().compareTo((String) pos.value());
+              case BIRTH_DATE  -> patient.birthDate().compareTo((LocalDate) pos.value());
+            };
+            return c > 0 || (c == 0 && patient.id().value().compareTo(pos.id().value()) > 0);
+          }
+      )
+      .orElse(patient -> true);
+    }
+
+    // Make a Page of the first (up to) limit + 1 Patients after the cursor position, in sort order:
+    // the extra one only serves to tell whether there's a next page
+    public Page toPage(List<Patient> patients){
+      return
+        patients.size() > limit ?
+          new Page(patients.subList(0,limit),Optional.of(cursorOf(patients.get(limit - 1)))) :
+          new Page(patients,Optional.empty());
+    }
+  }
+
+
+  public static record Page
+  (
+    List<Patient> patients,
+    Optional<String> next
+  )
+  {}
+
+
+  // The few properties shown in list views, which implementations can read without loading whole Patients
+  public static record Summary
+  (
+    Id<Patient> id,
+    Gender gender,
+    String givenName,
+    String familyName,
+    LocalDate birthDate
+  )
+  {
+    public static Summary of(Patient patient){
+      return new Summary(
+        patient.id(),
+        patient.gender(),
+        patient.givenName(),
+        patient.familyName(),
+        patient.birthDate()
+      );
+    }
   }
 
 
@@ -136,5 +288,57 @@ public record Patient
   }
 
 
+  // Apply an event to the Patient state, i.e. fold the events of a Patient in order of version into its state
+  public static Optional<Patient> apply(Optional<Patient> patient, PatientEvent event){
+    return switch(event.type()){
+
+      case CREATED ->
+        // Create a Patient instance wrapped in an Optional
+        Optional.of(
+          new Patient(
+            new Id<>(event.id()),
+            event.gender(),
+            event.givenName(),
+            event.familyName(),
+            event.birthDate(),
+            Optional.ofNullable(event.dateOfDeath()),
+            event.healthInsurance(),
+            event.address(),
+            event.timestamp()
+          )
+        );
+
+      case UPDATED ->
+        // Apply Update to the wrapped Patient instance, last updated at the event's time
+        patient.map(
+          pat -> pat.apply(
+            new Update(
+              new Id<>(event.id()),
+              Optional.ofNullable(event.gender()),
+              Optional.ofNullable(event.givenName()),
+              Optional.ofNullable(event.familyName()),
+              Optional.ofNullable(event.dateOfDeath()),
+              Optional.ofNullable(event.healthInsurance()),
+              Optional.ofNullable(event.address())
+            )
+          )
+        )
+        .map(
+          pat -> new Patient(
+            pat.id(),
+            pat.gender(),
+            pat.givenName(),
+            pat.familyName(),
+            pat.birthDate(),
+            pat.dateOfDeath(),
+            pat.healthInsurance(),
+            pat.address(),
+            event.timestamp()
+          )
+        );
+    };
+  }
+
+
 }
 
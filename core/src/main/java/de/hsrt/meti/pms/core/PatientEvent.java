@@ -1,18 +1,16 @@
-package de.hsrt.meti.pms.es;
+package de.hsrt.meti.pms.core;
 
 
 import java.time.Instant;
 import java.time.LocalDate;
-import de.hsrt.meti.pms.core.Address;
-import de.hsrt.meti.pms.core.Gender;
-import de.hsrt.meti.pms.core.Id;
-import de.hsrt.meti.pms.core.Patient;
 
 
 
 /*
- MongoDB Java Driver doesn't support java.util.Optional<T> fields.
- Also, the driver doesn't support sum types (sealed class hierarchies), so use Type enum for Event distinction
+ Event of a Patient's life-cycle, as stored by the EventStore implementations: fields not set by an UPDATED event are null
+ (e.g. the MongoDB Java Driver doesn't support java.util.Optional<T> fields, nor sum types, hence the Type enum).
+ The version numbers the events of a Patient consecutively from 1, which orders them for replay,
+ in which Patient.apply(state,event) folds them into the Patient's state.
 */
 public final record PatientEvent 
 (
@@ -25,7 +23,8 @@ public final record PatientEvent
   LocalDate dateOfDeath,
   String healthInsurance,
   Address address,
-  Instant timestamp
+  Instant timestamp,
+  int version
 ){
 
   // No DELETED value needed because command "Patient.Delete"
@@ -35,4 +34,3 @@ public final record PatientEvent
   }
 
 }
-
@@ -1,10 +1,13 @@
 package de.hsrt.meti.pms.core;
 
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.ServiceLoader;
+import java.util.stream.Stream;
 
 
 /*
@@ -24,6 +27,36 @@ public interface Repository
 
   List<Patient> findPatients(Patient.Filter filter);
 
+  // Like findPatients(...), but Patients are passed on as they are read, instead of being collected in a List first,
+  // so that memory use doesn't grow with the result size. The Stream may hold DB resources (Connection, cursor),
+  // so it must be closed, e.g. by try-with-resources
+  default Stream<Patient> streamPatients(Patient.Filter filter){
+    return findPatients(filter).stream();
+  }
+
+  // Page of the Patients matching the Filter, see Patient.PageRequest.
+  // The default implementation sorts all matching Patients in memory, implementations should override it
+  // with a native query that only reads the page, e.g. ORDER BY ... LIMIT with a "seek" condition on the sort key
+  default Patient.Page findPatients(Patient.Filter filter, Patient.PageRequest page){
+    try (var patients = streamPatients(filter)){
+      return page.toPage(
+        patients.filter(page.afterCursor())
+          .sorted(page.order())
+          .limit(page.limit() + 1L)
+          .toList()
+      );
+    }
+  }
+
+  // Summaries of the Patients matching the Filter, for list views.
+  // Implementations should override it with a query that only reads the summary properties,
+  // ideally from an index alone (a "covered" query), without fetching the stored records
+  default List<Patient.Summary> findPatientSummaries(Patient.Filter filter){
+    try (var patients = streamPatients(filter)){
+      return patients.map(Patient.Summary::of).toList();
+    }
+  }
+
   Optional<Patient> deletePatient(Id<Patient> id) throws Exception;
 
   default List<Patient> deletePatients(Patient.Filter filter) throws Exception {
@@ -36,6 +69,63 @@ public interface Repository
 
 
 
+  /* --------------------------------------------------------------------------
+    Bulk operations
+
+    saveAll(...) splits the Patients into batches of batchSize() and saves each by saveBatch(...).
+    The default saveBatch(...) just saves one Patient after the other, implementations
+    should override it with a native bulk operation (e.g. one round trip/transaction per batch).
+    A failing batch doesn't abort the others, but is reported in the returned list.
+  */
+
+  public static record BatchFailure
+  (
+    int batch,               // index of the batch, i.e. its Patients were at positions batch * batchSize() ff.
+    List<Id<Patient>> ids,   // IDs of the Patients in the batch
+    Exception cause
+  ){}
+
+
+  // Configurable by -Dpms.repo.batch.size=<n>
+  default int batchSize(){
+    return Integer.getInteger("pms.repo.batch.size",500);
+  }
+
+  default void saveBatch(List<Patient> patients) throws Exception {
+    for (Patient patient: patients){
+      save(patient);
+    }
+  }
+
+  default List<BatchFailure> saveAll(Stream<Patient> patients){
+
+    var size = batchSize();
+    var failures = new ArrayList<BatchFailure>();
+    var batch = new ArrayList<Patient>(size);
+    var n = 0;
+
+    for (var it = patients.iterator(); it.hasNext(); ){
+      batch.add(it.next());
+      if (batch.size() == size || !it.hasNext()){
+        try {
+          saveBatch(batch);
+        } catch (Exception e){
+          failures.add(new BatchFailure(n,batch.stream().map(Patient::id).toList(),e));
+        }
+        batch = new ArrayList<>(size);
+        n++;
+      }
+    }
+
+    return failures;
+  }
+
+  default List<BatchFailure> saveAll(Collection<Patient> patients){
+    return saveAll(patients.stream());
+  }
+
+
+
 
   /* --------------------------------------------------------------------------
     Service Provider Interface (SPI) pattern for dependency loading
@@ -49,10 +139,18 @@ public interface Repository
   }
 
 
+  // Returns the first Repository implementation found, unless a specific one is selected
+  // by its Provider class name, e.g. -Dpms.repo.provider=de.hsrt.meti.pms.repo.inmem.ColumnarRepository$Provider
   public static Repository getInstance(){
+
+    var selected = Optional.ofNullable(System.getProperty("pms.repo.provider"));
+
     return ServiceLoader.load(Provider.class)
-      .iterator()
-      .next()
+      .stream()
+      .filter(p -> selected.map(name -> p.type().getName().equals(name)).orElse(true))
+      .findFirst()
+      .orElseThrow()
+      .get()
       .getInstance();
   }
 
@@ -0,0 +1,54 @@
+package de.hsrt.meti.pms.es;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import de.hsrt.meti.pms.core.PatientEvent;
+
+
+// Partitions of the Patient ID range for parallel scans of the events: partition i holds the IDs from bounds[i-1] (inclusive) to bounds[i] (exclusive),
+// the first and last partition being open-ended
+record IdPartitions(List<String> bounds)
+{
+  static IdPartitions sample(MongoCollection<PatientEvent> events, int partitions){
+
+    var ids =
+      events.withDocumentClass(Document.class)
+        .aggregate(
+          List.of(
+            Aggregates.sample(partitions * 100),
+            Aggregates.project(Projections.include("id"))
+          )
+        )
+        .map(doc -> doc.getString("id"))
+        .into(new ArrayList<>())
+        .stream()
+        .distinct()
+        .sorted()
+        .toList();
+
+    var bounds = new ArrayList<String>();
+    for (int i = 1; i < partitions && !ids.isEmpty(); i++){
+      var bound = ids.get(i * ids.size() / partitions);
+      if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) bounds.add(bound);
+    }
+    return new IdPartitions(List.copyOf(bounds));
+  }
+
+  int size(){
+    return bounds.size() + 1;
+  }
+
+  Bson filter(int i){
+    var criteria = new ArrayList<Bson>();
+    if (i > 0) criteria.add(gte("id",bounds.get(i - 1)));
+    if (i < bounds.size()) criteria.add(lt("id",bounds.get(i)));
+    return criteria.isEmpty() ? new Document() : and(criteria);
+  }
+}
@@ -1,24 +1,46 @@
 package de.hsrt.meti.pms.es;
 
 
+import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.StreamSupport.stream;
-import com.mongodb.client.MongoDatabase;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoClients;
-import com.mongodb.client.model.CreateCollectionOptions;
-import com.mongodb.client.model.TimeSeriesOptions;
-import com.mongodb.client.model.TimeSeriesGranularity;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
 import static com.mongodb.client.model.Filters.*;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.bson.conversions.Bson;
 import de.hsrt.meti.pms.core.EventStore;
 import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Address;
 import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.PatientEvent;
 
 
 
@@ -36,30 +58,31 @@ final class MongoDBEventStore implements EventStore
 
   private final MongoCollection<MongoPatient> patients;
   private final MongoCollection<PatientEvent> patientEvents;
+  private final MongoCollection<PatientSnapshot> patientSnapshots;
+  private final MongoCollection<Document> patientDeletions;
 
+  // Asynchronous update of the query collection, if enabled by -Dpms.es.projection.async=true
+  private Optional<Projector> projector = Optional.empty();
 
-  private MongoDBEventStore(
-    final MongoCollection<MongoPatient> patients,
-    final MongoCollection<PatientEvent> patientEvents
-  ){
-    this.patients      = patients;
-    this.patientEvents = patientEvents;
-  }
+  // Cache of timelines for stateOfPatientAt(...), unless disabled by -Dpms.es.timeline.cacheSize=0
+  private Optional<TimelineCache> timelines = Optional.empty();
 
 
-  private static boolean collectionExists(
-    String name,
-    MongoDatabase db
+  private MongoDBEventStore(
+    final MongoCollection<MongoPatient> patients,
+    final MongoCollection<PatientEvent> patientEvents,
+    final MongoCollection<PatientSnapshot> patientSnapshots,
+    final MongoCollection<Document> patientDeletions
   ){
-    return
-      db.listCollectionNames()
-        .into(new ArrayList<>())
-        .contains(name);
+    this.patients         = patients;
+    this.patientEvents    = patientEvents;
+    this.patientSnapshots = patientSnapshots;
+    this.patientDeletions = patientDeletions;
   }
 
 
-  // Factory method
-  private static MongoDBEventStore setup(){
+  // Database as configured by system properties
+  static MongoDatabase database(){
 
     var host =
       System.getProperty("pms.mongodb.host");
@@ -79,35 +102,154 @@ final class MongoDBEventStore implements EventStore
     var dbName =
       Optional.ofNullable(System.getProperty("pms.mongodb.name")).orElse("pms-db");
 
-    var db =
-      client.getDatabase(dbName);
-
-    // Set up time-series collections
-    if (!collectionExists("patientEvents",db)){
-      db.createCollection(
-        "patientEvents",
-        new CreateCollectionOptions().timeSeriesOptions(
-          new TimeSeriesOptions("timestamp")
-            .metaField("id")
-            .granularity(TimeSeriesGranularity.SECONDS)
-        )
+    return client.getDatabase(dbName);
+  }
+
+
+  // Indexes of the Patient projection: ID lookups (and uniqueness of IDs), filter criteria of findPatients(Filter)
+  static void createIndexes(MongoCollection<MongoPatient> patients){
+    patients.createIndex(Indexes.ascending("id"),new IndexOptions().unique(true));
+    patients.createIndex(Indexes.ascending("familyName"));
+    patients.createIndex(Indexes.ascending("gender","birthDate"));
+    patients.createIndex(Indexes.ascending("birthDate"));
+    patients.createIndex(Indexes.ascending("address.city"));
+    patients.createIndex(Indexes.ascending("address.street"));
+  }
+
+
+  // Time after which deletion markers expire: longer than any Projector applies events late
+  // (grace period and sweep delay, see open(...)) and than a ProjectionRebuild runs
+  private static final Duration DELETION_MARKER_TTL =
+    Duration.ofMillis(Long.getLong("pms.es.deletions.ttl",86_400_000L));
+
+
+  // Markers of deleted Patients, by which states written concurrently with a deletion are removed again,
+  // removed by a TTL index once expired
+  static MongoCollection<Document> deletions(MongoDatabase db){
+    var deletions = db.getCollection("patientDeletions");
+    deletions.createIndex(Indexes.ascending("id"),new IndexOptions().unique(true));
+    deletions.createIndex(
+      Indexes.ascending("deleted"),
+      new IndexOptions().expireAfter(DELETION_MARKER_TTL.toSeconds(),TimeUnit.SECONDS)
+    );
+    return deletions;
+  }
+
+
+  // Remove the states of the Patients among ids from the query collection, which were deleted in the meantime:
+  // a deletion stores its marker before deleting the state, so either the deletion or this check removes a state
+  // written from events read before the deletion
+  static void removeDeleted(MongoCollection<Document> deletions, MongoCollection<MongoPatient> patients, Collection<String> ids){
+    if (ids.isEmpty()) return;
+    var deleted = deletions.distinct("id",in("id",ids),String.class).into(new ArrayList<>());
+    if (!deleted.isEmpty()) patients.deleteMany(in("id",deleted));
+  }
+
+
+  // Factory method, configured by system properties
+  private static MongoDBEventStore setup(){
+    return open(
+      database(),
+      Boolean.getBoolean("pms.es.projection.async"),
+      Long.getLong("pms.es.timeline.cacheSize",100_000L)
+    );
+  }
+
+
+  // Event store on the database, with the given projection mode and timeline cache size (0 for none)
+  static MongoDBEventStore open(MongoDatabase db, boolean asyncProjection, long timelineCacheSize){
+
+    // Events are kept in a regular collection (not a time-series collection, as before),
+    // as only these support the unique index on (id, version)
+    var eventsCollection =
+      db.listCollections().filter(eq("name","patientEvents")).first();
+
+    if (eventsCollection != null && "timeseries".equals(eventsCollection.getString("type"))){
+      throw new IllegalStateException(
+        "Collection 'patientEvents' of database '" + db.getName() + "' is a time-series collection of an earlier version: " +
+        "re-create it as regular collection, with a version number per event"
       );
     }
 
+    var patientEvents =
+      db.getCollection("patientEvents",PatientEvent.class);
 
-    return new MongoDBEventStore(
-      db.getCollection("patients",MongoPatient.class),
-      db.getCollection("patientEvents",PatientEvent.class)
-    );
+    // Optimistic concurrency: two concurrent appends of the same version of a Patient conflict
+    patientEvents.createIndex(Indexes.ascending("id","version"),new IndexOptions().unique(true));
+
+    var patients =
+      db.getCollection("patients",MongoPatient.class);
+
+    createIndexes(patients);
+
+    var patientSnapshots =
+      db.getCollection("patientSnapshots",PatientSnapshot.class);
+
+    // At most one snapshot per version, and lookup of the newest one before a given time
+    patientSnapshots.createIndex(Indexes.ascending("id","version"),new IndexOptions().unique(true));
+    patientSnapshots.createIndex(Indexes.descending("id","timestamp","version"));
+
+    var eventStore =
+      new MongoDBEventStore(
+        patients,
+        patientEvents,
+        patientSnapshots,
+        deletions(db)
+      );
+
+    if (asyncProjection){
+      var grace = Duration.ofMillis(Long.getLong("pms.es.projection.grace",1_000L));
+      var sweepDelay = Duration.ofMillis(Long.getLong("pms.es.projection.sweepDelay",60_000L));
+
+      // A marker must outlast the events of its Patient the Projector may still apply
+      if (DELETION_MARKER_TTL.compareTo(grace.plus(sweepDelay)) <= 0){
+        throw new IllegalStateException(
+          "Deletion marker TTL " + DELETION_MARKER_TTL + " must exceed projection grace period and sweep delay " + grace.plus(sweepDelay)
+        );
+      }
+
+      var projector =
+        new Projector(
+          patientEvents,
+          patients,
+          eventStore.patientDeletions,
+          db.getCollection("projectionCheckpoints"),
+          eventStore::rebuild,
+          Integer.getInteger("pms.es.projection.batchSize",500),
+          grace,
+          sweepDelay
+        );
+      projector.start(Long.getLong("pms.es.projection.pollInterval",100L));
+      eventStore.projector = Optional.of(projector);
+    }
+
+    if (timelineCacheSize > 0){
+      eventStore.timelines =
+        Optional.of(
+          new TimelineCache(
+            timelineCacheSize,
+            eventStore::history,
+            eventStore::eventsAfter,
+            eventStore::currentVersion,
+            (id,t) -> eventStore.replay(id,t).patient()
+          )
+        );
+    }
+
+    return eventStore;
 
   }
 
 
-  // Singleton pattern
-  private static MongoDBEventStore INSTANCE = setup();
+  // Singleton pattern, initialized on first use: the static helpers above (e.g. as used by ProjectionRebuild)
+  // must not set up a store, with its own client, indexes and Projector
+  private static final class Singleton
+  {
+    static final MongoDBEventStore INSTANCE = setup();
+  }
 
   static MongoDBEventStore instance(){
-    return INSTANCE;
+    return Singleton.INSTANCE;
   }
 
 
@@ -123,16 +265,91 @@ final class MongoDBEventStore implements EventStore
   }
 
 
+  // Current version of the Patient: the version of its latest event, 0 if there is none
+  private int currentVersion(Id<Patient> id){
+    return
+      Optional.ofNullable(
+        patientEvents.find(withId(id))
+          .sort(Sorts.descending("version"))
+          .limit(1)
+          .first()
+      )
+      .map(PatientEvent::version)
+      .orElse(0);
+  }
+
+
+  @Override
+  public Optional<Integer> patientVersion(Id<Patient> id){
+    return Optional.of(currentVersion(id)).filter(v -> v > 0);
+  }
+
+
+  // Append the event to the Patient's events, failing if an event of its version exists already,
+  // i.e. another one was appended concurrently since the expected version was read
+  private void append(PatientEvent event){
+    try {
+      patientEvents.insertOne(event);
+    } catch (MongoWriteException e){
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) throw e;
+      throw new ConcurrentModificationException(
+        "Patient " + event.id() + " was modified concurrently: version " + event.version() + " exists already"
+      );
+    }
+  }
+
+
+  private static void checkVersion(Id<Patient> id, int expectedVersion, int currentVersion){
+    if (expectedVersion != currentVersion){
+      throw new ConcurrentModificationException(
+        "Patient " + id.value() + " is at version " + currentVersion + ", not at expected version " + expectedVersion
+      );
+    }
+  }
+
+
+  // Attempts of process(cmd) upon concurrent modifications, and the backoff before the first retry,
+  // doubled for each further one
+  private static final int MAX_ATTEMPTS = Integer.getInteger("pms.es.process.maxAttempts",10);
+  private static final long BACKOFF_MILLIS = Long.getLong("pms.es.process.backoff",5L);
+
+
+  // Without expected version, the Command is applied to the current version,
+  // retried with the then current version in case of a concurrent modification
   @Override
   public Patient process(Patient.Command cmd) throws Exception {
+    for (int attempt = 1; ; attempt++){
+      try {
+        return switch(cmd){
+          case Patient.Create cr  -> process(cr,0);
+          case Patient.Update up  -> process(up,currentVersion(up.id()));
+          case Patient.Delete del -> process(del,currentVersion(del.id()));
+        };
+      } catch (ConcurrentModificationException e){
+        if (attempt >= MAX_ATTEMPTS) throw e;
+        // Random ("full jitter") backoff, so that the conflicting writers don't retry in lockstep
+        var backoff = BACKOFF_MILLIS << Math.min(attempt - 1,16);
+        Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+      }
+    }
+  }
+
+
+  @Override
+  public Patient process(Patient.Command cmd, int expectedVersion) throws Exception {
 
     return switch(cmd){
 
       case Patient.Create cr -> {
 
+        // A new Patient has no events yet
+        if (expectedVersion != 0){
+          throw new ConcurrentModificationException("A new Patient is at version 0, not at expected version " + expectedVersion);
+        }
+
         var id = this.patientId();
 
-        patientEvents.insertOne(
+        var event =
           new PatientEvent(
             PatientEvent.Type.CREATED,
             id.value(),
@@ -143,22 +360,29 @@ final class MongoDBEventStore implements EventStore
             null,             // date of death not set upon creation 
             cr.healthInsurance(),
             cr.address(),
-            Instant.now() 
-          )
-        );
+            now(),
+            1
+          );
+
+        append(event);
 
         var patient =
-          this.findPatient(id).orElseThrow();              
+          Patient.apply(Optional.empty(),event).orElseThrow();
 
-        // Add the Patient's snapshot to the query collection
-        patients.insertOne(MongoPatient.from(patient));
+        // Add the Patient's current state to the query collection, unless the Projector does
+        // (or a concurrent ProjectionRebuild stored it already)
+        if (projector.isEmpty()) storeState(id,patient,1);
 
         yield patient;
       }
 
       case Patient.Update up -> {
 
-        patientEvents.insertOne(
+        var version = currentVersion(up.id());
+        if (version == 0) throw new NoSuchElementException("No Patient " + up.id().value());
+        checkVersion(up.id(),expectedVersion,version);
+
+        var event =
           new PatientEvent(
             PatientEvent.Type.UPDATED,
             up.id().value(),
@@ -169,27 +393,59 @@ final class MongoDBEventStore implements EventStore
             up.dateOfDeath().orElse(null),
             up.healthInsurance().orElse(null),
             up.address().orElse(null),
-            Instant.now() 
-          )
-        );
-
-        var patient =
-          this.findPatient(up.id()).orElseThrow();              
+            now(),
+            version + 1
+          );
+
+        append(event);
+        timelines.ifPresent(cache -> cache.append(up.id(),event));
+
+        // Apply the event to the previous state incrementally, if the query collection holds it...
+        var previous =
+          Optional.ofNullable(patients.find(and(withId(up.id()),eq("version",version))).first());
+
+        // (the Projector updates the query collection, so only the new state is returned)
+        if (projector.isPresent()){
+          yield
+            previous.flatMap(p -> Patient.apply(Optional.of(p.revert()),event))
+              .or(() -> replay(up.id(),Instant.now()).patient())
+              .orElseThrow();
+        }
+
+        if (previous.isPresent()){
+          var patient =
+            Patient.apply(Optional.of(previous.get().revert()),event).orElseThrow();
+
+          var replaced =
+            patients.replaceOne(
+              and(withId(up.id()),eq("version",version)),
+              MongoPatient.from(patient,version + 1)
+            );
 
-        // Update the Patient's snapshot in the query collection
-        patients.findOneAndReplace(withId(patient.id()),MongoPatient.from(patient));
+          if (replaced.getMatchedCount() > 0) yield patient;
+        }
 
-        yield patient;
+        // ...or else (changed concurrently in between, or lagging behind), rebuild the current state from the events
+        yield rebuild(up.id()).orElseThrow();
       }
 
       case Patient.Delete del -> {
 
-        var patient = this.findPatient(del.id());
+        var version = currentVersion(del.id());
+        checkVersion(del.id(),expectedVersion,version);
+
+        // Fold the state from the events, as the query collection may lag behind
+        var patient = replay(del.id(),Instant.now()).patient();
+        if (patient.isEmpty()) throw new NoSuchElementException("No Patient " + del.id().value());
+
+        markDeleted(del.id());
 
         patientEvents.deleteMany(withId(del.id()));
+        patientSnapshots.deleteMany(withId(del.id()));
         patients.deleteMany(withId(del.id()));
+        timelines.ifPresent(cache -> cache.invalidate(del.id()));
 
-        yield patient.orElseThrow();
+        yield patient.get();
 
       }
 
@@ -198,97 +454,299 @@ final class MongoDBEventStore implements EventStore
   }
 
 
+  private void markDeleted(Id<Patient> id){
+    try {
+      patientDeletions.insertOne(new Document("id",id.value()).append("deleted",new Date()));
+    } catch (MongoWriteException e){
+      // Marked already by a concurrent deletion
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) throw e;
+    }
+  }
+
+
+  // Events replayed on top of a snapshot (or from the start) beyond which a new snapshot is stored,
+  // which bounds the replay cost of later reconstructions
+  private static final int SNAPSHOT_INTERVAL = Integer.getInteger("pms.es.snapshot.interval",100);
+
+
+  // Event timestamps with the precision they are stored with, so that states computed from a new event
+  // equal the ones reconstructed from the stored event
+  private static Instant now(){
+    return Instant.now().truncatedTo(ChronoUnit.MILLIS);
+  }
+
+
+  // Patient state folded from the events up to a point in time, with the number of events folded
+  private static record State(Optional<Patient> patient, int version){}
+
+
+  // Replace the Patient's state in the query collection by the given version (or insert it, if absent),
+  // unless the stored state is at least as recent
+  private void storeState(Id<Patient> id, Patient patient, int version){
+    try {
+      patients.replaceOne(
+        and(withId(id),lt("version",version)),
+        MongoPatient.from(patient,version),
+        new ReplaceOptions().upsert(true)
+      );
+    } catch (MongoWriteException e){
+      // The stored state is at least as recent, so the upsert tried to insert a duplicate
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) throw e;
+    }
+  }
+
+
+  // Replace the Patient's state in the query collection by the current state reconstructed from the events
+  private Optional<Patient> rebuild(Id<Patient> id){
+    var state = replay(id,Instant.now());
+    state.patient().ifPresent(
+      patient -> {
+        storeState(id,patient,state.version());
+        removeDeleted(patientDeletions,patients,List.of(id.value()));
+      }
+    );
+    return state.patient();
+  }
+
+
   @Override
   public Optional<Patient> stateOfPatientAt(Id<Patient> id, Instant t){
+    return timelines.isPresent() ?
+      timelines.get().stateAt(id,t) :
+      replay(id,t).patient();
+  }
+
+
+  // Events of the Patient after the given version, in order of version
+  private List<PatientEvent> eventsAfter(Id<Patient> id, int version){
+    return
+      patientEvents.find(and(withId(id),gt("version",version)))
+        .sort(Sorts.ascending("version"))
+        .into(new ArrayList<>());
+  }
+
 
-    // Get all events of Pat. id which occurred before t
+  // Newest snapshot of the Patient at or before t, if any
+  private Optional<PatientSnapshot> snapshotAt(Id<Patient> id, Instant t){
+    return
+      Optional.ofNullable(
+        patientSnapshots.find(and(withId(id),lte("timestamp",t)))
+          .sort(Sorts.descending("timestamp","version"))
+          .first()
+      );
+  }
+
+
+  // Newest snapshot of the Patient and the events after it, from which the TimelineCache folds its states
+  private TimelineCache.History history(Id<Patient> id){
+
+    var snapshot =
+      Optional.ofNullable(
+        patientSnapshots.find(withId(id))
+          .sort(Sorts.descending("timestamp","version"))
+          .first()
+      );
+
+    var events = eventsAfter(id,snapshot.map(PatientSnapshot::version).orElse(0));
+
+    // Bound the events to load next time, like replay(...) does
+    if (events.size() >= SNAPSHOT_INTERVAL){
+      var patient = snapshot.map(snap -> snap.patient().revert());
+      for (var event : events) patient = Patient.apply(patient,event);
+      var last = events.get(events.size() - 1);
+      patient.ifPresent(
+        p -> storeSnapshot(new PatientSnapshot(id.value(),last.version(),last.timestamp(),MongoPatient.from(p,last.version())))
+      );
+    }
+
+    return new TimelineCache.History(snapshot,events);
+  }
+
+
+  private State replay(Id<Patient> id, Instant t){
+
+    // Start from the newest snapshot at or before t, if any
+    var snapshot = snapshotAt(id,t);
+
+    // Get the events of Pat. id after the snapshot, which occurred before t, in order of their version
     var events =
-      patientEvents.find(and(withId(id),lte("timestamp",t)));
+      patientEvents.find(
+        and(
+          withId(id),
+          gt("version",snapshot.map(PatientSnapshot::version).orElse(0)),
+          lte("timestamp",t)
+        )
+      )
+      .sort(Sorts.ascending("version"));
 
-    Optional<Patient> patient = Optional.empty();
+    var patient = snapshot.map(snap -> snap.patient().revert());
+    var version = snapshot.map(PatientSnapshot::version).orElse(0);
+    var timestamp = snapshot.map(PatientSnapshot::timestamp).orElse(Instant.EPOCH);
+    var replayed = 0;
 
-    // Loop over events (already ordered chronologically, being a time-series collection)
-    // and accumulate them by consecutively 
- 
+    // Loop over events and accumulate them by consecutively applying them
     for (PatientEvent event : events){
-      switch(event.type()){
-
-        case PatientEvent.Type.CREATED -> 
-          // Create a Patient instance wrapped in an Optional
-          patient =
-            Optional.of(
-              new Patient(
-                new Id<>(event.id()),
-                event.gender(),
-                event.givenName(),
-                event.familyName(),
-                event.birthDate(),
-                Optional.ofNullable(event.dateOfDeath()),
-                event.healthInsurance(),
-                event.address(),
-                event.timestamp()
-              )
-            );
+      patient = Patient.apply(patient,event);
+      version = event.version();
+      timestamp = event.timestamp();
+      replayed++;
+    }
 
-        case PatientEvent.Type.UPDATED -> 
-          // Apply Update to the wrapped Patient instance 
-          patient =
-            patient.map(
-              pat -> pat.apply(
-                new Patient.Update(
-                  new Id<>(event.id()),
-                  Optional.ofNullable(event.gender()),
-                  Optional.ofNullable(event.givenName()),
-                  Optional.ofNullable(event.familyName()),
-                  Optional.ofNullable(event.dateOfDeath()),
-                  Optional.ofNullable(event.healthInsurance()),
-                  Optional.ofNullable(event.address())
-                )
-              )
-            );
-      }
+    if (replayed >= SNAPSHOT_INTERVAL && patient.isPresent()){
+      storeSnapshot(new PatientSnapshot(id.value(),version,timestamp,MongoPatient.from(patient.get(),version)));
     }
-    return patient;
 
+    return new State(patient,version);
+  }
+
+
+  private void storeSnapshot(PatientSnapshot snapshot){
+    try {
+      patientSnapshots.insertOne(snapshot);
+    } catch (MongoWriteException e){
+      // Snapshot of this version already stored by a concurrent reconstruction
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) throw e;
+    }
   }
 
 
   @Override
   public Optional<Patient> findPatient(Id<Patient> id){
 
-    // Implemented terms of stateOfPatientAt(...) at time now
-    return stateOfPatientAt(id,Instant.now());
+    // Current state from the query collection; stateOfPatientAt(...) replays events for past states
+    return
+      Optional.ofNullable(
+        patients.find(withId(id)).first()
+      )
+      .map(MongoPatient::revert);
   }
 
 
   @Override
-  public List<Patient> findPatients(Patient.Filter filter){
+  public Duration projectionLag(){
+    return projector.map(Projector::lag).orElse(Duration.ZERO);
+  }
+
+
+  // Number of events the Projector applied late, i.e. which became visible after polls had passed them by
+  long lateProjectedEvents(){
+    return projector.map(Projector::lateEvents).orElse(0L);
+  }
+
+
+  @Override
+  public void awaitVersion(Id<Patient> id, int version, Duration timeout) throws InterruptedException, TimeoutException {
+    if (projector.isPresent()) projector.get().awaitVersion(id,version,timeout);
+  }
+
+
+  // Substring match, see Patient.Filter.matches(...), by unanchored regex: it can't seek in an index on the field,
+  // but scanning its keys still saves fetching non-matching documents. The value is always quoted,
+  // so that it never reaches the regex engine as pattern
+  private static Bson containing(String field, String value){
+    return regex(field,Pattern.quote(value));
+  }
+
+
+  private FindIterable<MongoPatient> query(Patient.Filter filter){
 
     // Convert Patient.Filter into MongoDB filter:
     List<Bson> criteria = new ArrayList<>();
 
     // Add present filter criteria to list
     filter.gender().ifPresent(set -> criteria.add(in("gender",set)));
-    filter.familyName().ifPresent(name -> criteria.add(regex("familyName",name)));
+    filter.familyName().ifPresent(name -> criteria.add(containing("familyName",name)));
     filter.birthDatePeriod().ifPresent(
       period -> {
         criteria.add(gte("birthDate",period.start()));
         period.end().ifPresent(date -> criteria.add(lte("birthDate",date)));
       }
     );
-    //TODO: Address filter criteria... 
+    filter.address().flatMap(Address.Filter::street).ifPresent(street -> criteria.add(containing("address.street",street)));
+    filter.address().flatMap(Address.Filter::city).ifPresent(city -> criteria.add(containing("address.city",city)));
 
     // Submit query with criteria combined by 'and' logic (crit1 and crit2 and ...), if present
-    var results =
+    return
       criteria.isEmpty() ?
         patients.find() :
         patients.find(and(criteria));
+  }
+
 
+  @Override
+  public List<Patient> findPatients(Patient.Filter filter){
     return
-      stream(results.spliterator(),false)
+      stream(query(filter).spliterator(),false)
         .map(MongoPatient::revert)
         .collect(toList());
   }
 
 
+  // Documents fetched per round trip by streamPatients(...)
+  private static final int BATCH_SIZE = Integer.getInteger("pms.mongodb.batchSize",1_000);
+
+  // Partitions of the ID range scanned in parallel by findPatientsAt(...)
+  private static final int TEMPORAL_PARTITIONS =
+    Integer.getInteger("pms.es.temporal.partitions",Runtime.getRuntime().availableProcessors());
+
+
+  @Override
+  public List<Patient> findPatientsAt(Patient.Filter filter, Instant t){
+
+    var partitions = IdPartitions.sample(patientEvents,TEMPORAL_PARTITIONS);
+    Predicate<Patient> matches = filter::matches;
+
+    return
+      IntStream.range(0,partitions.size())
+        .parallel()
+        .mapToObj(i -> foldAt(partitions.filter(i),t,matches))
+        .flatMap(List::stream)
+        .collect(toList());
+  }
+
+
+  // Fold the events up to t of all Patients in the ID partition, in one scan ordered by (id, version),
+  // i.e. along the unique index, so that each Patient's events are consecutive and only one state is held at a time
+  private List<Patient> foldAt(Bson partition, Instant t, Predicate<Patient> matches){
+
+    var result = new ArrayList<Patient>();
+
+    String id = null;
+    Optional<Patient> state = Optional.empty();
+
+    try (
+      var cursor =
+        patientEvents.find(and(partition,lte("timestamp",t)))
+          .sort(Sorts.ascending("id","version"))
+          .batchSize(BATCH_SIZE)
+          .cursor()
+    ){
+      while (cursor.hasNext()){
+        var event = cursor.next();
+        if (!event.id().equals(id)){
+          state.filter(matches).ifPresent(result::add);
+          id = event.id();
+          state = Optional.empty();
+        }
+        state = Patient.apply(state,event);
+      }
+    }
+    state.filter(matches).ifPresent(result::add);
+
+    return result;
+  }
+
+
+  @Override
+  public Stream<Patient> streamPatients(Patient.Filter filter){
+
+    var cursor = query(filter).batchSize(BATCH_SIZE).cursor();
+
+    return
+      stream(Spliterators.spliteratorUnknownSize(cursor,Spliterator.ORDERED | Spliterator.NONNULL),false)
+        .map(MongoPatient::revert)
+        .onClose(cursor::close);
+  }
+
+
 }
@@ -10,7 +10,8 @@ import de.hsrt.meti.pms.core.Id;
 import de.hsrt.meti.pms.core.Patient;
 
 
-// Needed as workaround for the fact that MongoDB Java Driver doesn't support java.util.Optional<T> fields
+// Needed as workaround for the fact that MongoDB Java Driver doesn't support java.util.Optional<T> fields.
+// The version is the number of events the state was folded from
 public record MongoPatient
 (
   String id,
@@ -21,11 +22,12 @@ public record MongoPatient
   LocalDate dateOfDeath,
   String healthInsurance,
   Address address,
-  Instant lastUpdate
+  Instant lastUpdate,
+  int version
 )
 {
 
-  static MongoPatient from(Patient patient){
+  static MongoPatient from(Patient patient, int version){
     return new MongoPatient(
       patient.id().value(),
       patient.gender(),
@@ -35,7 +37,8 @@ public record MongoPatient
       patient.dateOfDeath().orElse(null),
       patient.healthInsurance(),
       patient.address(),
-      patient.lastUpdate()
+      patient.lastUpdate(),
+      version
     );
   }
 
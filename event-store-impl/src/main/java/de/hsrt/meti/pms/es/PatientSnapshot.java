@@ -0,0 +1,18 @@
+package de.hsrt.meti.pms.es;
+
+
+import java.time.Instant;
+
+
+
+/*
+ State of a Patient folded from its events up to 'version' (with the timestamp of that event),
+ so that reconstruction can start from here and only replay the events after it.
+*/
+public final record PatientSnapshot
+(
+  String id,
+  int version,
+  Instant timestamp,
+  MongoPatient patient
+){}
@@ -0,0 +1,263 @@
+package de.hsrt.meti.pms.es;
+
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.PatientEvent;
+
+
+/*
+  Rebuild of the 'patients' query collection from the events, e.g. after it got corrupted, or a field was added:
+
+  - The range of Patient IDs is split into partitions (at quantiles of a sample of IDs),
+    which worker threads replay in parallel.
+  - A worker reads the events of its partition ordered by (id, version), i.e. along the unique index,
+    folds the events of each Patient as they stream by, and inserts the resulting states in bulk.
+  - The states go to a new collection, which then atomically replaces 'patients' by renaming it.
+  - Patients with events appended while the rebuild ran are rebuilt once more afterwards,
+    and Patients deleted while it ran (by their deletion markers) are removed again. Markers expire
+    after -Dpms.es.deletions.ttl (default: a day), so a rebuild must finish within that time.
+
+  Run with the system properties of the event store (pms.mongodb.*), e.g.
+
+    java -Dpms.mongodb.host=localhost -cp ... de.hsrt.meti.pms.es.ProjectionRebuild [threads]
+*/
+public final class ProjectionRebuild
+{
+
+  public static record Progress
+  (
+    long events,
+    long patients,
+    Duration elapsed
+  )
+  {
+    public double eventsPerSecond(){
+      return elapsed.isZero() ? 0 : events * 1e9 / elapsed.toNanos();
+    }
+  }
+
+
+  private static final String TARGET = "patients";
+  private static final String REBUILT = "patients_rebuild";
+
+  private final MongoDatabase db;
+  private final MongoCollection<PatientEvent> events;
+  private final MongoCollection<Document> deletions;
+  private final int threads;
+  private final int batchSize;
+
+  private final LongAdder eventCount = new LongAdder();
+  private final LongAdder patientCount = new LongAdder();
+
+
+  ProjectionRebuild(MongoDatabase db, int threads, int batchSize){
+    this.db        = db;
+    this.events    = db.getCollection("patientEvents",PatientEvent.class);
+    this.deletions = MongoDBEventStore.deletions(db);
+    this.threads   = threads;
+    this.batchSize = batchSize;
+  }
+
+
+  Progress run(Consumer<Progress> progress) throws InterruptedException {
+
+    var start = Instant.now();
+
+    // Events from here on may be missed by the workers, so their Patients are caught up with at the end
+    // (with a second of margin, the precision of ObjectId timestamps)
+    var startMark = new ObjectId(Date.from(start.minusSeconds(1)));
+
+    var rebuilt = db.getCollection(REBUILT,MongoPatient.class);
+    rebuilt.drop();
+
+    // More partitions than threads, to balance uneven partitions
+    var partitions = IdPartitions.sample(events,threads * 4);
+
+    var workers = Executors.newFixedThreadPool(threads);
+    var reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(
+      () -> progress.accept(progress(start)),
+      1,1,TimeUnit.SECONDS
+    );
+
+    try {
+      var futures = new ArrayList<Future<?>>();
+      for (int i = 0; i < partitions.size(); i++){
+        var filter = partitions.filter(i);
+        futures.add(workers.submit(() -> replay(filter,rebuilt)));
+      }
+      for (var future : futures){
+        try {
+          future.get();
+        } catch (ExecutionException e){
+          throw new RuntimeException("Replay of a partition failed",e.getCause());
+        }
+      }
+    } finally {
+      workers.shutdownNow();
+      reporter.shutdownNow();
+    }
+
+    MongoDBEventStore.createIndexes(rebuilt);
+
+    rebuilt.renameCollection(
+      new MongoNamespace(db.getName(),TARGET),
+      new RenameCollectionOptions().dropTarget(true)
+    );
+
+    var target = db.getCollection(TARGET,MongoPatient.class);
+    catchUp(startMark,target);
+    removeDeleted(startMark,target);
+
+    var result = progress(start);
+    progress.accept(result);
+    return result;
+  }
+
+
+  private Progress progress(Instant start){
+    return new Progress(eventCount.sum(),patientCount.sum(),Duration.between(start,Instant.now()));
+  }
+
+
+  private void replay(Bson filter, MongoCollection<MongoPatient> target){
+
+    var batch = new ArrayList<MongoPatient>(batchSize);
+
+    String id = null;
+    Optional<Patient> state = Optional.empty();
+    var version = 0;
+
+    try (
+      var cursor =
+        events.find(filter)
+          .sort(Sorts.ascending("id","version"))
+          .batchSize(batchSize)
+          .cursor()
+    ){
+      while (cursor.hasNext()){
+        var event = cursor.next();
+
+        if (!event.id().equals(id)){
+          state.ifPresent(add(batch,version));
+          if (batch.size() >= batchSize) insert(batch,target);
+          id = event.id();
+          state = Optional.empty();
+        }
+
+        state = Patient.apply(state,event);
+        version = event.version();
+        eventCount.increment();
+      }
+    }
+
+    state.ifPresent(add(batch,version));
+    insert(batch,target);
+  }
+
+
+  private Consumer<Patient> add(List<MongoPatient> batch, int version){
+    return patient -> batch.add(MongoPatient.from(patient,version));
+  }
+
+
+  private void insert(List<MongoPatient> batch, MongoCollection<MongoPatient> target){
+    if (batch.isEmpty()) return;
+    target.insertMany(batch,new InsertManyOptions().ordered(false));
+    patientCount.add(batch.size());
+    batch.clear();
+  }
+
+
+  // Rebuild the Patients with events appended since the start mark, unless their stored state is as recent
+  private void catchUp(ObjectId startMark, MongoCollection<MongoPatient> target){
+
+    var ids =
+      events.distinct("id",gte("_id",startMark),String.class)
+        .into(new ArrayList<>());
+
+    for (var id : ids){
+      Optional<Patient> state = Optional.empty();
+      var version = 0;
+
+      for (var event : events.find(eq("id",id)).sort(Sorts.ascending("version"))){
+        state = Patient.apply(state,event);
+        version = event.version();
+      }
+
+      if (state.isPresent()){
+        try {
+          target.replaceOne(
+            and(eq("id",id),lt("version",version)),
+            MongoPatient.from(state.get(),version),
+            new ReplaceOptions().upsert(true)
+          );
+        } catch (MongoWriteException e){
+          // The stored state is at least as recent, so the upsert tried to insert a duplicate
+          if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) throw e;
+        }
+      }
+    }
+  }
+
+
+
+  // Remove the Patients deleted since the start mark, whose states a worker may have folded before the deletion
+  private void removeDeleted(ObjectId startMark, MongoCollection<MongoPatient> target){
+    var ids =
+      deletions.distinct("id",gte("_id",startMark),String.class)
+        .into(new ArrayList<>());
+    MongoDBEventStore.removeDeleted(deletions,target,ids);
+  }
+
+
+
+  public static void main(String[] args) throws Exception {
+
+    var threads =
+      args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+    var rebuild =
+      new ProjectionRebuild(
+        MongoDBEventStore.database(),
+        threads,
+        Integer.getInteger("pms.es.rebuild.batchSize",1_000)
+      );
+
+    var result =
+      rebuild.run(
+        p -> System.out.printf(
+          "%,d events, %,d patients in %d s (%,.0f events/s)%n",
+          p.events(),p.patients(),p.elapsed().toSeconds(),p.eventsPerSecond()
+        )
+      );
+
+    System.out.printf("Rebuilt %,d patients from %,d events%n",result.patients(),result.events());
+  }
+
+}
@@ -0,0 +1,353 @@
+package de.hsrt.meti.pms.es;
+
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import static java.util.stream.Collectors.toMap;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.WriteModel;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.PatientEvent;
+
+
+/*
+  Asynchronous update of the 'patients' query collection from the events:
+
+  - Events are polled in order of their _id (ObjectIds increase with time) after a checkpoint,
+    which is stored after each batch, so that a restart resumes there.
+  - Events appended concurrently may become visible out of _id order, so each poll starts a grace period
+    before the checkpoint. Events already applied are recognized by their version, i.e. applying is idempotent.
+  - Events visible only later than that are picked up by a sweep, which scans the events once more
+    when they are older than the sweep delay, and counted as late events.
+  - Each batch is applied with one query for the current states of its Patients, and one bulk write.
+    A gap in a Patient's versions (e.g. after events were missed) is closed by rebuilding its state from the events.
+  - States written for Patients deleted in the meantime are removed again (see MongoDBEventStore.removeDeleted).
+  - The lag is the delay between appending events and applying them, as of the latest poll,
+    or the age of the checkpoint while polls fail.
+*/
+final class Projector
+{
+
+  private static final String CHECKPOINT = "patients";
+
+  private final MongoCollection<RawBsonDocument> events;
+  private final MongoCollection<MongoPatient> patients;
+  private final MongoCollection<Document> deletions;
+  private final MongoCollection<Document> checkpoints;
+  private final Consumer<Id<Patient>> rebuild;
+
+  private final int batchSize;
+  private final Duration grace;
+  private final Duration sweepDelay;
+
+  private final ScheduledExecutorService executor =
+    Executors.newSingleThreadScheduledExecutor(
+      r -> {
+        var thread = new Thread(r,"patients-projector");
+        thread.setDaemon(true);
+        return thread;
+      }
+    );
+
+  private ObjectId position;
+  private ObjectId swept;
+  private volatile Duration lag = Duration.ZERO;
+  private final LongAdder lateEvents = new LongAdder();
+  private volatile RuntimeException failure = null;
+
+  // Number of batches applied, guarded by this: awaitVersion(...) waits for it to change
+  private long batches = 0;
+
+
+  Projector(
+    MongoCollection<PatientEvent> events,
+    MongoCollection<MongoPatient> patients,
+    MongoCollection<Document> deletions,
+    MongoCollection<Document> checkpoints,
+    Consumer<Id<Patient>> rebuild,
+    int batchSize,
+    Duration grace,
+    Duration sweepDelay
+  ){
+    this.events      = events.withDocumentClass(RawBsonDocument.class);
+    this.patients    = patients;
+    this.deletions   = deletions;
+    this.checkpoints = checkpoints;
+    this.rebuild     = rebuild;
+    this.batchSize   = batchSize;
+    this.grace       = grace;
+    this.sweepDelay  = sweepDelay;
+
+    this.position =
+      Optional.ofNullable(checkpoints.find(eq("_id",CHECKPOINT)).first())
+        .map(doc -> doc.getObjectId("position"))
+        .orElse(new ObjectId(new Date(0)));
+
+    // After a restart, the events up to the sweep delay before the checkpoint are swept (once more)
+    this.swept = before(position,sweepDelay);
+  }
+
+
+  void start(long pollInterval){
+    executor.scheduleWithFixedDelay(this::pollSafely,0,pollInterval,TimeUnit.MILLISECONDS);
+  }
+
+
+  void close(){
+    executor.shutdown();
+  }
+
+
+  Duration lag(){
+    return lag;
+  }
+
+
+  long lateEvents(){
+    return lateEvents.sum();
+  }
+
+
+  // Wait until the query collection holds at least the given version of the Patient
+  void awaitVersion(Id<Patient> id, int version, Duration timeout) throws InterruptedException, TimeoutException {
+
+    var deadline = System.nanoTime() + timeout.toNanos();
+
+    while (true){
+      // The batch count before the query, so that a batch applied meanwhile isn't waited for
+      long seen;
+      synchronized (this){
+        seen = batches;
+      }
+
+      // Queried without holding the monitor, which apply(...) needs to report each batch
+      var current = Optional.ofNullable(patients.find(eq("id",id.value())).first()).map(MongoPatient::version).orElse(0);
+      if (current >= version) return;
+
+      synchronized (this){
+        while (true){
+          var remaining = deadline - System.nanoTime();
+          if (remaining <= 0){
+            var e = new TimeoutException("Patient " + id.value() + " not projected at version " + version + " within " + timeout);
+            if (failure != null) e.initCause(failure);
+            throw e;
+          }
+          if (batches != seen) break;
+          // Woken up after each applied batch
+          TimeUnit.NANOSECONDS.timedWait(this,remaining);
+        }
+      }
+    }
+  }
+
+
+
+  private void pollSafely(){
+    try {
+      poll();
+      failure = null;
+    } catch (RuntimeException e){
+      // Retried by the next poll, and reported by awaitVersion(...);
+      // meanwhile the lag grows with the age of the checkpoint
+      failure = e;
+      lag = max(lag,Duration.between(position.getDate().toInstant(),Instant.now()));
+    }
+  }
+
+
+  // ObjectId timestamps are unsigned, so times before the epoch are clamped to it
+  private static ObjectId before(ObjectId id, Duration d){
+    var t = id.getDate().toInstant().minus(d);
+    return new ObjectId(Date.from(t.isBefore(Instant.EPOCH) ? Instant.EPOCH : t));
+  }
+
+
+  private void poll(){
+
+    var from = before(position,grace);
+
+    var maxLag = Duration.ZERO;
+
+    try (
+      var cursor =
+        events.find(gt("_id",from))
+          .sort(Sorts.ascending("_id"))
+          .batchSize(batchSize)
+          .cursor()
+    ){
+      var codec = events.getCodecRegistry().get(PatientEvent.class);
+      var batch = new ArrayList<PatientEvent>(batchSize);
+      var last = position;
+
+      while (cursor.hasNext()){
+        var raw = cursor.next();
+        batch.add(raw.decode(codec));
+        last = raw.getObjectId("_id").getValue();
+
+        if (batch.size() == batchSize || !cursor.hasNext()){
+          maxLag = max(maxLag,apply(batch).lag());
+          checkpoint(last);
+          batch.clear();
+        }
+      }
+    }
+
+    lag = maxLag;
+
+    sweep(from);
+  }
+
+
+  // Apply the events between the previous sweep and the sweep delay ago, but at most up to the start
+  // of the polled range: the ones applied only now were missed by the polls
+  private void sweep(ObjectId polled){
+
+    var now = new ObjectId(Date.from(Instant.now().minus(sweepDelay)));
+    var until = now.compareTo(polled) < 0 ? now : polled;
+    if (until.compareTo(swept) <= 0) return;
+
+    try (
+      var cursor =
+        events.find(and(gt("_id",swept),lte("_id",until)))
+          .sort(Sorts.ascending("_id"))
+          .batchSize(batchSize)
+          .cursor()
+    ){
+      var codec = events.getCodecRegistry().get(PatientEvent.class);
+      var batch = new ArrayList<PatientEvent>(batchSize);
+
+      while (cursor.hasNext()){
+        batch.add(cursor.next().decode(codec));
+
+        if (batch.size() == batchSize || !cursor.hasNext()){
+          lateEvents.add(apply(batch).events());
+          batch.clear();
+        }
+      }
+    }
+
+    swept = until;
+  }
+
+
+  private static Duration max(Duration d1, Duration d2){
+    return d1.compareTo(d2) >= 0 ? d1 : d2;
+  }
+
+
+  private void checkpoint(ObjectId last){
+    if (last.compareTo(position) > 0){
+      position = last;
+      checkpoints.replaceOne(
+        eq("_id",CHECKPOINT),
+        new Document("_id",CHECKPOINT).append("position",position).append("updated",new Date()),
+        new ReplaceOptions().upsert(true)
+      );
+    }
+  }
+
+
+  // Number of events applied from a batch, and the maximum delay between appending and applying one of them
+  private static record Applied(int events, Duration lag){}
+
+
+  // Apply a batch of events (skipping the ones applied already)
+  private Applied apply(List<PatientEvent> batch){
+
+    var byPatient = new LinkedHashMap<String,List<PatientEvent>>();
+    batch.forEach(event -> byPatient.computeIfAbsent(event.id(),id -> new ArrayList<>()).add(event));
+
+    var current =
+      patients.find(in("id",byPatient.keySet()))
+        .into(new ArrayList<>())
+        .stream()
+        .collect(toMap(MongoPatient::id,p -> p));
+
+    var writes = new ArrayList<WriteModel<MongoPatient>>();
+    var written = new ArrayList<String>();
+    var now = Instant.now();
+    var maxLag = Duration.ZERO;
+    var applied = 0;
+
+    for (Map.Entry<String,List<PatientEvent>> entry : byPatient.entrySet()){
+
+      var previous = Optional.ofNullable(current.get(entry.getKey()));
+      var state = previous.map(MongoPatient::revert);
+      var version = previous.map(MongoPatient::version).orElse(0);
+      var gap = false;
+
+      var patientEvents = entry.getValue();
+      patientEvents.sort((e1,e2) -> Integer.compare(e1.version(),e2.version()));
+
+      for (var event : patientEvents){
+        if (event.version() <= version) continue;  // applied already
+        if (event.version() > version + 1){
+          gap = true;
+          break;
+        }
+        state = Patient.apply(state,event);
+        version = event.version();
+        maxLag = max(maxLag,Duration.between(event.timestamp(),now));
+        applied++;
+      }
+
+      if (gap){
+        rebuild.accept(new Id<>(entry.getKey()));
+
+      } else if (state.isPresent() && version > previous.map(MongoPatient::version).orElse(0)){
+        var updated = MongoPatient.from(state.get(),version);
+        writes.add(
+          previous.isPresent() ?
+            // Only replace the state it was computed from
+            new ReplaceOneModel<>(and(eq("id",entry.getKey()),eq("version",previous.get().version())),updated) :
+            new ReplaceOneModel<>(eq("id",entry.getKey()),updated,new ReplaceOptions().upsert(true))
+        );
+        written.add(entry.getKey());
+      }
+    }
+
+    if (!writes.isEmpty()){
+      try {
+        patients.bulkWrite(writes,new BulkWriteOptions().ordered(false));
+      } catch (MongoBulkWriteException e){
+        // A duplicate key means a concurrent projector inserted the Patient first, the next poll catches up
+        var unexpected =
+          e.getWriteErrors().stream()
+            .anyMatch(error -> ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY);
+        if (unexpected) throw e;
+      }
+      MongoDBEventStore.removeDeleted(deletions,patients,written);
+    }
+
+    synchronized (this){
+      batches++;
+      notifyAll();
+    }
+
+    return new Applied(applied,maxLag);
+  }
+
+}
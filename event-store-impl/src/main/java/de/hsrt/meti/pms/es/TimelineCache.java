@@ -0,0 +1,242 @@
+package de.hsrt.meti.pms.es;
+
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.PatientEvent;
+
+
+/*
+  In-process cache of Patient timelines, which answers stateOfPatientAt(id,t) for recently queried Patients
+  without fetching and re-folding their events:
+
+  - A timeline starts from the newest snapshot of the Patient (if any), and holds the events after it
+    in order of version, and the states folded up to every CHECKPOINT_INTERVAL-th event. The state at t is found
+    by binary search of the event timestamps, and a replay of at most CHECKPOINT_INTERVAL - 1 events
+    from the preceding checkpoint. States before the snapshot are reconstructed by the event store, uncached.
+  - Events are only ever appended, so the state at t is final once a later event exists. New events of this
+    process are appended to the cached timeline. For t at or after the latest cached event, the current version
+    is checked (an index lookup) to detect events appended by other processes, which are fetched and appended.
+  - Timelines are evicted in least-recently-used order, to keep the total number of cached events in budget.
+
+  Events deleted by another process (Patient.Delete) may still be served for past instants until evicted.
+*/
+final class TimelineCache
+{
+
+  private static final int CHECKPOINT_INTERVAL = 16;
+
+
+  // Newest snapshot of a Patient (if any) and its events after it, in order of version
+  static record History(Optional<PatientSnapshot> snapshot, List<PatientEvent> events){}
+
+
+  private static final class Timeline
+  {
+    private final Optional<Patient> base;
+    private final int baseVersion;
+    private final Optional<Instant> baseTimestamp;  // empty without snapshot, i.e. the timeline starts at version 0
+
+    private final List<PatientEvent> events = new ArrayList<>();
+    private final List<Instant> timestamps = new ArrayList<>();
+    private final List<Patient> checkpoints = new ArrayList<>();  // checkpoints[k] is the state after (k + 1) * CHECKPOINT_INTERVAL events
+    private Optional<Patient> current;
+
+    // Event timestamps normally increase with the version, but concurrent appends by different processes
+    // may be off by clock skew: binary search is only valid for ordered timestamps
+    private boolean ordered = true;
+
+
+    Timeline(History history){
+      this.base          = history.snapshot().map(snap -> snap.patient().revert());
+      this.baseVersion   = history.snapshot().map(PatientSnapshot::version).orElse(0);
+      this.baseTimestamp = history.snapshot().map(PatientSnapshot::timestamp);
+      this.current       = base;
+      history.events().forEach(this::append);
+    }
+
+
+    synchronized int version(){
+      return baseVersion + events.size();
+    }
+
+    // Number of cached events, and the snapshot
+    synchronized int weight(){
+      return events.size() + 1;
+    }
+
+    synchronized Optional<Instant> latest(){
+      return timestamps.isEmpty() ? baseTimestamp : Optional.of(timestamps.get(timestamps.size() - 1));
+    }
+
+    // Whether the state at t can be folded from the timeline, i.e. t is not before its snapshot
+    boolean covers(Instant t){
+      return baseTimestamp.map(start -> !t.isBefore(start)).orElse(true);
+    }
+
+
+    synchronized void append(PatientEvent event){
+      if (!timestamps.isEmpty() && event.timestamp().isBefore(timestamps.get(timestamps.size() - 1))) ordered = false;
+      events.add(event);
+      timestamps.add(event.timestamp());
+      current = Patient.apply(current,event);
+      if (events.size() % CHECKPOINT_INTERVAL == 0) checkpoints.add(current.orElseThrow());
+    }
+
+
+    synchronized Optional<Patient> stateAt(Instant t){
+
+      if (!ordered){
+        var state = base;
+        for (var event : events){
+          if (!event.timestamp().isAfter(t)) state = Patient.apply(state,event);
+        }
+        return state;
+      }
+
+      // Number of events at or before t
+      var n = upperBound(t);
+
+      var k = n / CHECKPOINT_INTERVAL;
+      var state = k > 0 ? Optional.of(checkpoints.get(k - 1)) : base;
+
+      for (int i = k * CHECKPOINT_INTERVAL; i < n; i++){
+        state = Patient.apply(state,events.get(i));
+      }
+      return state;
+    }
+
+
+    // Index of the first timestamp after t
+    private int upperBound(Instant t){
+      var i = Collections.binarySearch(timestamps,t);
+      if (i < 0) return -(i + 1);
+      // Several events may have the same timestamp
+      while (i < timestamps.size() && !timestamps.get(i).isAfter(t)) i++;
+      return i;
+    }
+  }
+
+
+  private final long maxEvents;
+  private final Function<Id<Patient>,History> loadHistory;
+  private final BiFunction<Id<Patient>,Integer,List<PatientEvent>> eventsAfter;
+  private final ToIntFunction<Id<Patient>> currentVersion;
+  private final BiFunction<Id<Patient>,Instant,Optional<Patient>> replay;
+
+  // Access-ordered, i.e. iterated from the least recently used timeline
+  private final LinkedHashMap<String,Timeline> timelines = new LinkedHashMap<>(16,0.75f,true);
+  private long cachedEvents = 0;
+
+
+  TimelineCache(
+    long maxEvents,
+    Function<Id<Patient>,History> loadHistory,
+    BiFunction<Id<Patient>,Integer,List<PatientEvent>> eventsAfter,
+    ToIntFunction<Id<Patient>> currentVersion,
+    BiFunction<Id<Patient>,Instant,Optional<Patient>> replay
+  ){
+    this.maxEvents      = maxEvents;
+    this.loadHistory    = loadHistory;
+    this.eventsAfter    = eventsAfter;
+    this.currentVersion = currentVersion;
+    this.replay         = replay;
+  }
+
+
+  Optional<Patient> stateAt(Id<Patient> id, Instant t){
+
+    var timeline = get(id);
+
+    if (timeline == null){
+      var history = loadHistory.apply(id);
+      if (history.snapshot().isEmpty() && history.events().isEmpty()) return Optional.empty();
+      timeline = new Timeline(history);
+      put(id,timeline);
+
+    } else if (timeline.latest().map(latest -> !t.isBefore(latest)).orElse(true)){
+      var version = currentVersion.applyAsInt(id);
+      if (version == 0){
+        invalidate(id);
+        return Optional.empty();
+      }
+      if (version != timeline.version()) catchUp(id,timeline);
+    }
+
+    return timeline.covers(t) ? timeline.stateAt(t) : replay.apply(id,t);
+  }
+
+
+  // Append the events appended by other processes
+  private void catchUp(Id<Patient> id, Timeline timeline){
+    var newer = eventsAfter.apply(id,timeline.version());
+    synchronized (this){
+      var cached = timelines.get(id.value()) == timeline;
+      for (var event : newer){
+        if (event.version() != timeline.version() + 1) continue;  // appended concurrently already
+        timeline.append(event);
+        if (cached) cachedEvents++;
+      }
+      if (cached) evict(timeline);
+    }
+  }
+
+
+  // To be called upon a new event of the Patient: appended to its cached timeline, if it is the next one
+  synchronized void append(Id<Patient> id, PatientEvent event){
+    var timeline = timelines.get(id.value());
+    if (timeline == null) return;
+    if (event.version() == timeline.version() + 1){
+      timeline.append(event);
+      cachedEvents++;
+      evict(timeline);
+    } else if (event.version() > timeline.version()){
+      invalidate(id);
+    }
+  }
+
+
+  // To be called upon the deletion of the Patient
+  synchronized void invalidate(Id<Patient> id){
+    var removed = timelines.remove(id.value());
+    if (removed != null) cachedEvents -= removed.weight();
+  }
+
+
+  private synchronized Timeline get(Id<Patient> id){
+    return timelines.get(id.value());
+  }
+
+
+  private synchronized void put(Id<Patient> id, Timeline timeline){
+
+    // Timelines beyond the budget are used once, but not cached
+    if (timeline.weight() > maxEvents) return;
+
+    var previous = timelines.put(id.value(),timeline);
+    cachedEvents += timeline.weight() - (previous != null ? previous.weight() : 0);
+
+    evict(timeline);
+  }
+
+
+  private void evict(Timeline keep){
+    var lru = timelines.values().iterator();
+    while (cachedEvents > maxEvents && lru.hasNext()){
+      var evicted = lru.next();
+      if (evicted == keep) continue;
+      cachedEvents -= evicted.weight();
+      lru.remove();
+    }
+  }
+
+}
@@ -1,6 +1,9 @@
 package de.hsrt.meti.pms.es;
 
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.Set;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -8,10 +11,15 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
 import de.hsrt.meti.pms.core.Gender;
 import de.hsrt.meti.pms.core.Id;
 import de.hsrt.meti.pms.core.Patient;
 import de.hsrt.meti.pms.core.EventStore;
+import de.hsrt.meti.pms.gens.FilterFixtures;
 import static de.hsrt.meti.pms.gens.Generators.*;
 
 
@@ -63,12 +71,21 @@ public final class Tests
     );
 
   }
+
+
+  // Event timestamps have millisecond precision, so states a test queries by their lastUpdate
+  // have to be at least a millisecond apart
+  private static void awaitNextMilli() throws InterruptedException {
+    Thread.sleep(2);
+  }
+
  
   @BeforeAll
   public static void init(){
 
     System.setProperty("pms.mongodb.host","localhost");
     System.setProperty("pms.mongodb.name","pms-event-store");
+    System.setProperty("pms.es.snapshot.interval","5");
 
     eventStore = EventStore.getInstance();
 
@@ -159,4 +176,151 @@ public final class Tests
   }
 */
 
+
+  @Test
+  public void testSnapshots() throws Exception {
+
+    // A store without timeline cache, so that point-in-time states are reconstructed from snapshots and events
+    var db = MongoDBEventStore.database();
+    var store = MongoDBEventStore.open(db,false,0);
+
+    var patient = store.process(createPatient());
+
+    // Versions 2 to 13, i.e. more events than the snapshot interval (5, see init())
+    var states = new ArrayList<Patient>();
+    for (int i = 0; i < 12; i++){
+      awaitNextMilli();
+      states.add(store.process(i % 2 == 0 ? updateName(patient) : updateAddress(patient)));
+    }
+
+    var last = states.get(states.size() - 1);
+    var restoredPatient = store.findPatient(patient.id()).get();
+
+    assertEquals(last.familyName(),restoredPatient.familyName());
+    assertEquals(last.address(),restoredPatient.address());
+
+    // Reconstructing version 7 replays 7 events, so a snapshot of it is stored
+    var snapshotted = states.get(5);
+    var restoredSnapshotted = store.stateOfPatientAt(patient.id(),snapshotted.lastUpdate()).get();
+
+    assertEquals(snapshotted.familyName(),restoredSnapshotted.familyName());
+    assertEquals(snapshotted.address(),restoredSnapshotted.address());
+
+    var snapshots = db.getCollection("patientSnapshots");
+    assertEquals(1,snapshots.countDocuments(and(eq("id",patient.id().value()),eq("version",7))));
+
+    // States before the snapshot are reconstructed from the events alone...
+    var earlier = states.get(2);
+    var restoredEarlier = store.stateOfPatientAt(patient.id(),earlier.lastUpdate()).get();
+
+    assertEquals(earlier.familyName(),restoredEarlier.familyName());
+    assertEquals(earlier.address(),restoredEarlier.address());
+
+    // ...and later ones from the snapshot and the events after it
+    var restoredLast = store.stateOfPatientAt(patient.id(),last.lastUpdate()).get();
+
+    assertEquals(last.familyName(),restoredLast.familyName());
+    assertEquals(last.address(),restoredLast.address());
+  }
+
+
+  @Test
+  public void testOptimisticConcurrency() throws Exception {
+
+    var patient = eventStore.process(createPatient(),0);
+
+    assertTrue(eventStore.patientVersion(patient.id()).equals(Optional.of(1)));
+
+    eventStore.process(updateName(patient),1);
+
+    // Another update based on version 1 conflicts with the one that created version 2
+    assertThrows(
+      ConcurrentModificationException.class,
+      () -> eventStore.process(updateAddress(patient),1)
+    );
+
+    assertTrue(eventStore.patientVersion(patient.id()).equals(Optional.of(2)));
+  }
+
+
+  @Test
+  public void testTimeline() throws Exception {
+
+    var patient = eventStore.process(createPatient());
+
+    var states = new ArrayList<Patient>();
+    for (int i = 0; i < 20; i++){
+      awaitNextMilli();
+      states.add(eventStore.process(updateName(patient)));
+    }
+
+    // Repeated point-in-time queries, served from the cached timeline after the first one
+    for (int round = 0; round < 2; round++){
+      for (var state : states){
+        assertTrue(
+          eventStore.stateOfPatientAt(patient.id(),state.lastUpdate()).get().familyName()
+            .equals(state.familyName())
+        );
+      }
+    }
+
+    // A new event is appended to the timeline
+    awaitNextMilli();
+    var updated = eventStore.process(updateName(patient));
+
+    assertTrue(
+      eventStore.stateOfPatientAt(patient.id(),updated.lastUpdate()).get().familyName()
+        .equals(updated.familyName())
+    );
+  }
+
+
+  @Test
+  public void testPatientsAt() throws Exception {
+
+    var patient = eventStore.process(createPatient());
+    var t = patient.lastUpdate();
+
+    // The update and the later Patient at least a millisecond after t, the precision of event timestamps
+    awaitNextMilli();
+    eventStore.process(updateName(patient));
+    var later = eventStore.process(createPatient());
+
+    var states = eventStore.findPatientsAt(Patient.Filter.NONE,t);
+
+    // The Patient as created, but not the one created after t
+    assertTrue(
+      states.stream().anyMatch(p -> p.id().equals(patient.id()) && p.familyName().equals(patient.familyName())) &&
+      states.stream().noneMatch(p -> p.id().equals(later.id()))
+    );
+  }
+
+
+  @Test
+  public void testReadYourWrites() throws Exception {
+
+    var patient = eventStore.process(createPatient());
+
+    var nameUpdate = updateName(patient);
+    var updated = eventStore.process(nameUpdate);
+
+    // With asynchronous projection (-Dpms.es.projection.async=true), reads catch up with version 2 eventually
+    eventStore.awaitVersion(patient.id(),2,Duration.ofSeconds(10));
+
+    assertTrue(
+      eventStore.findPatient(patient.id()).get().familyName().equals(updated.familyName())
+    );
+  }
+
+
+  // Same results as Patient.Filter.matches(...) on the created Patients
+  @Test
+  public void testFilterSemantics() throws Exception {
+
+    var patients = new ArrayList<Patient>();
+    for (int i = 0; i < 500; i++) patients.add(eventStore.process(createPatient()));
+
+    FilterFixtures.assertSameResults(patients,eventStore::findPatients);
+  }
+
 }
@@ -0,0 +1,93 @@
+package de.hsrt.meti.pms.gens;
+
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import de.hsrt.meti.pms.core.*;
+import de.hsrt.meti.pms.util.Codecs;
+
+
+public final class BinaryCodecTests
+{
+
+  @Test
+  public void testPatientRoundTrip(){
+
+    var patients =
+      Stream.concat(
+        Stream.generate(Generators::patient).limit(1_000),
+        Stream.of(
+          new Patient(
+            new Id<>("65f1c0ffee0000000000beef"),  // ObjectId
+            Gender.OTHER,
+            "Zoë",
+            "Öztürk-Müller",
+            LocalDate.of(1899,12,31),
+            Optional.of(LocalDate.of(1970,1,1)),
+            "AOK",
+            new Address("Straße des 17. Juni","1a","10623","Berlin"),
+            Instant.ofEpochSecond(-1,999_999_999)
+          )
+        )
+      )
+      .toList();
+
+    for (var patient : patients){
+      assertEquals(patient,Codecs.decodePatient(ByteBuffer.wrap(Codecs.encode(patient))));
+    }
+  }
+
+
+  @Test
+  public void testDiagnosisAndPrescriptionRoundTrip(){
+
+    for (int i = 0; i < 1_000; i++){
+      var patient = Generators.patient();
+      var diagnosis = Generators.diagnosisFor(patient);
+      var prescription = Generators.prescriptionFor(patient,diagnosis);
+
+      assertEquals(diagnosis,Codecs.decodeDiagnosis(ByteBuffer.wrap(Codecs.encode(diagnosis))));
+      assertEquals(prescription,Codecs.decodePrescription(ByteBuffer.wrap(Codecs.encode(prescription))));
+    }
+  }
+
+
+  @Test
+  public void testIdRoundTrip(){
+
+    for (var id : List.of(Generators.id().value(),"65f1c0ffee0000000000beef","65F1C0FFEE0000000000BEEF","patient-42","")){
+      var buf = ByteBuffer.wrap(Codecs.encode(new Id<>(id)));
+      assertEquals(id,Codecs.decodeId(buf).value());
+    }
+  }
+
+
+  // The binary encoding is meant as compact alternative to JSON: compare the total size with Jackson
+  @Test
+  public void testSizeComparedWithJackson() throws Exception {
+
+    var json = new ObjectMapper().registerModule(new JavaTimeModule()).registerModule(new Jdk8Module());
+
+    var patients = Stream.generate(Generators::patient).limit(1_000).toList();
+
+    long binarySize = 0;
+    long jsonSize = 0;
+    for (var patient : patients){
+      binarySize += Codecs.encode(patient).length;
+      jsonSize += json.writeValueAsBytes(patient).length;
+    }
+
+    assertTrue(binarySize * 2 < jsonSize,"Binary " + binarySize + " bytes, JSON " + jsonSize + " bytes");
+  }
+
+}
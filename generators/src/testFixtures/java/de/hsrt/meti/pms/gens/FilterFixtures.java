@@ -0,0 +1,64 @@
+package de.hsrt.meti.pms.gens;
+
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import static java.util.stream.Collectors.toSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import de.hsrt.meti.pms.core.*;
+import static de.hsrt.meti.pms.core.Gender.*;
+
+
+/*
+  Filters on generated Patients covering each criterion, to check that an implementation finds the same
+  Patients as Patient.Filter.matches(...): familyName, street and city as substrings
+  (so "eier" matches "Meier", but "M_" matches nothing, as LIKE wildcards are taken literally)
+*/
+public final class FilterFixtures
+{
+
+  private FilterFixtures(){}
+
+
+  public static final List<Patient.Filter> FILTERS =
+    List.of(
+      Patient.Filter.NONE,
+      new Patient.Filter(Optional.of(Set.of(FEMALE)), Optional.empty(), Optional.empty(), Optional.empty()),
+      new Patient.Filter(
+        Optional.empty(),
+        Optional.of("M"),
+        Optional.of(new Period<>(LocalDate.ofEpochDay(100),Optional.of(LocalDate.ofEpochDay(200)))),
+        Optional.empty()
+      ),
+      new Patient.Filter(
+        Optional.of(Set.of(MALE)),
+        Optional.empty(),
+        Optional.empty(),
+        Optional.of(new Address.Filter(Optional.of("Isar"),Optional.of("lingen")))
+      ),
+      new Patient.Filter(Optional.empty(), Optional.of("Mei"), Optional.empty(), Optional.empty()),
+      new Patient.Filter(Optional.empty(), Optional.of("eier"), Optional.empty(), Optional.empty()),
+      new Patient.Filter(Optional.empty(), Optional.of("M_"), Optional.empty(), Optional.empty()),
+      new Patient.Filter(Optional.empty(), Optional.of("Zimmermann"), Optional.empty(), Optional.of(new Address.Filter(Optional.of("Neckar"),Optional.empty())))
+    );
+
+
+  // For each of FILTERS, find(filter) returns the same of the given Patients as Patient.Filter.matches(...),
+  // ignoring other stored Patients, e.g. of other tests
+  public static void assertSameResults(List<Patient> patients, Function<Patient.Filter,List<Patient>> find){
+
+    var ids = patients.stream().map(Patient::id).collect(toSet());
+
+    for (var filter : FILTERS){
+      assertEquals(
+        patients.stream().filter(filter::matches).map(Patient::id).collect(toSet()),
+        find.apply(filter).stream().map(Patient::id).filter(ids::contains).collect(toSet()),
+        "Filter " + filter
+      );
+    }
+  }
+
+}
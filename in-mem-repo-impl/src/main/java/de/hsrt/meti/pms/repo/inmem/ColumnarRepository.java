@@ -0,0 +1,363 @@
+package de.hsrt.meti.pms.repo.inmem;
+
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import static java.util.UUID.randomUUID;
+import de.hsrt.meti.pms.core.Address;
+import de.hsrt.meti.pms.core.Gender;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.Repository;
+
+
+/*
+  In-memory Repository storing Patients column-wise in primitive arrays, instead of as object graphs:
+
+  - Gender and health insurance as byte codes
+  - Dates as epoch-day int, lastUpdate as epoch-milli long (i.e. with millisecond precision)
+  - Strings dictionary-encoded as int codes (see Dictionary)
+  - IDs in canonical UUID form as 2 longs, others kept as String
+
+  Filters are evaluated directly on the columns: String criteria once per distinct value on the Dictionary,
+  then per row by code lookup. Patient objects are only created for rows actually returned.
+
+  Rows of deleted Patients are reused. All columns are guarded by one ReadWriteLock.
+*/
+final class ColumnarRepository implements Repository
+{
+
+  // Service Provider Interface (SPI)
+  public static final class Provider implements Repository.Provider
+  {
+    @Override
+    public Repository getInstance(){
+      return new ColumnarRepository();
+    }
+
+  }
+
+
+  private static final int NO_DATE = Integer.MIN_VALUE;
+
+  private static final Gender[] GENDERS = Gender.values();
+
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private int capacity = 1024;
+  private int rowCount = 0;
+  private final BitSet live = new BitSet();
+
+  private int[] freeRows = new int[16];
+  private int freeCount = 0;
+
+  // ID columns and hash table (open addressing, entries are row + 1, 0 for empty slots, -1 for deleted)
+  private long[] idHigh = new long[capacity];
+  private long[] idLow  = new long[capacity];
+  private final Map<Integer,String> otherIds = new HashMap<>();
+  private int[] idTable = new int[2048];
+  private int idTableUsed = 0;
+
+  private byte[] genders          = new byte[capacity];
+  private int[]  givenNames       = new int[capacity];
+  private int[]  familyNames      = new int[capacity];
+  private int[]  birthDates       = new int[capacity];
+  private int[]  datesOfDeath     = new int[capacity];
+  private byte[] healthInsurances = new byte[capacity];
+  private int[]  streets          = new int[capacity];
+  private int[]  houses           = new int[capacity];
+  private int[]  postalCodes      = new int[capacity];
+  private int[]  cities           = new int[capacity];
+  private long[] lastUpdates      = new long[capacity];
+
+  private final Dictionary names = new Dictionary();
+  private final Dictionary insurances = new Dictionary();
+  private final Dictionary places = new Dictionary();
+
+
+  ColumnarRepository(){ }
+
+
+
+  // --------------------------------------------------------------------------
+  // ID handling
+
+  // ID in canonical UUID form, packed into 2 longs, or kept as String otherwise
+  private static record Key(long high, long low, String other)
+  {
+    static Key of(Id<Patient> id){
+      try {
+        var uuid = UUID.fromString(id.value());
+        if (uuid.toString().equals(id.value())){
+          return new Key(uuid.getMostSignificantBits(),uuid.getLeastSignificantBits(),null);
+        }
+      } catch (IllegalArgumentException e){
+        // not a UUID
+      }
+      return new Key(0,0,id.value());
+    }
+
+    int hash(){
+      var h = other != null ? other.hashCode() : Long.hashCode(high * 31 + low);
+      return h ^ (h >>> 16);
+    }
+  }
+
+
+  private boolean hasKey(int row, Key key){
+    return
+      key.other() != null ?
+        key.other().equals(otherIds.get(row)) :
+        idHigh[row] == key.high() && idLow[row] == key.low() && !otherIds.containsKey(row);
+  }
+
+
+  private Id<Patient> idOf(int row){
+    var other = otherIds.get(row);
+    return new Id<>(other != null ? other : new UUID(idHigh[row],idLow[row]).toString());
+  }
+
+
+  private int findRow(Key key){
+    var mask = idTable.length - 1;
+    for (int slot = key.hash() & mask; idTable[slot] != 0; slot = (slot + 1) & mask){
+      var row = idTable[slot] - 1;
+      if (row >= 0 && hasKey(row,key)) return row;
+    }
+    return -1;
+  }
+
+
+  private void insertKey(Key key, int row){
+    if ((idTableUsed + 1) * 3L > idTable.length * 2L) rehash();
+    var mask = idTable.length - 1;
+    var slot = key.hash() & mask;
+    while (idTable[slot] > 0) slot = (slot + 1) & mask;
+    if (idTable[slot] == 0) idTableUsed++;
+    idTable[slot] = row + 1;
+  }
+
+
+  private void removeKey(Key key){
+    var mask = idTable.length - 1;
+    for (int slot = key.hash() & mask; idTable[slot] != 0; slot = (slot + 1) & mask){
+      var row = idTable[slot] - 1;
+      if (row >= 0 && hasKey(row,key)){
+        idTable[slot] = -1;
+        return;
+      }
+    }
+  }
+
+
+  private void rehash(){
+    var live = this.live.cardinality();
+    var size = Integer.highestOneBit(Math.max(live * 4, 2048));
+    idTable = new int[size];
+    idTableUsed = 0;
+    this.live.stream().forEach(row -> insertKey(new Key(idHigh[row],idLow[row],otherIds.get(row)),row));
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Row handling
+
+  private void ensureCapacity(int row){
+    if (row < capacity) return;
+
+    capacity *= 2;
+    idHigh           = Arrays.copyOf(idHigh,capacity);
+    idLow            = Arrays.copyOf(idLow,capacity);
+    genders          = Arrays.copyOf(genders,capacity);
+    givenNames       = Arrays.copyOf(givenNames,capacity);
+    familyNames      = Arrays.copyOf(familyNames,capacity);
+    birthDates       = Arrays.copyOf(birthDates,capacity);
+    datesOfDeath     = Arrays.copyOf(datesOfDeath,capacity);
+    healthInsurances = Arrays.copyOf(healthInsurances,capacity);
+    streets          = Arrays.copyOf(streets,capacity);
+    houses           = Arrays.copyOf(houses,capacity);
+    postalCodes      = Arrays.copyOf(postalCodes,capacity);
+    cities           = Arrays.copyOf(cities,capacity);
+    lastUpdates      = Arrays.copyOf(lastUpdates,capacity);
+  }
+
+
+  private void write(int row, Key key, Patient patient){
+
+    var insurance = insurances.encode(patient.healthInsurance());
+
+    idHigh[row] = key.high();
+    idLow[row]  = key.low();
+    if (key.other() != null) otherIds.put(row,key.other()); else otherIds.remove(row);
+
+    genders[row]          = (byte) patient.gender().ordinal();
+    givenNames[row]       = names.encode(patient.givenName());
+    familyNames[row]      = names.encode(patient.familyName());
+    birthDates[row]       = (int) patient.birthDate().toEpochDay();
+    datesOfDeath[row]     = patient.dateOfDeath().map(d -> (int) d.toEpochDay()).orElse(NO_DATE);
+    healthInsurances[row] = (byte) insurance;
+    streets[row]          = places.encode(patient.address().street());
+    houses[row]           = places.encode(patient.address().house());
+    postalCodes[row]      = places.encode(patient.address().postalCode());
+    cities[row]           = places.encode(patient.address().city());
+    lastUpdates[row]      = patient.lastUpdate().toEpochMilli();
+  }
+
+
+  private Patient read(int row){
+    return new Patient(
+      idOf(row),
+      GENDERS[genders[row]],
+      names.decode(givenNames[row]),
+      names.decode(familyNames[row]),
+      LocalDate.ofEpochDay(birthDates[row]),
+      datesOfDeath[row] == NO_DATE ? Optional.empty() : Optional.of(LocalDate.ofEpochDay(datesOfDeath[row])),
+      insurances.decode(healthInsurances[row] & 0xFF),
+      new Address(
+        places.decode(streets[row]),
+        places.decode(houses[row]),
+        places.decode(postalCodes[row]),
+        places.decode(cities[row])
+      ),
+      Instant.ofEpochMilli(lastUpdates[row])
+    );
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Repository operations
+
+  @Override
+  public Id<Patient> patientId(){
+    Id<Patient> id;
+    do {
+      id = new Id<Patient>(randomUUID().toString());
+    } while (findPatient(id).isPresent());
+
+    return id;
+  }
+
+
+  @Override
+  public void save(Patient patient) throws Exception {
+
+    var key = Key.of(patient.id());
+
+    lock.writeLock().lock();
+    try {
+      // Check before taking a row or encoding anything, as encoding adds the value to the Dictionary for good
+      if (!insurances.contains(patient.healthInsurance()) && insurances.size() > 0xFF){
+        throw new IllegalStateException("More than 256 distinct health insurances can't be byte-coded");
+      }
+
+      var row = findRow(key);
+      if (row < 0){
+        row = freeCount > 0 ? freeRows[--freeCount] : rowCount++;
+        ensureCapacity(row);
+        write(row,key,patient);
+        insertKey(key,row);
+        live.set(row);
+      } else {
+        write(row,key,patient);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  @Override
+  public Optional<Patient> findPatient(Id<Patient> id){
+
+    var key = Key.of(id);
+
+    lock.readLock().lock();
+    try {
+      var row = findRow(key);
+      return row < 0 ? Optional.empty() : Optional.of(read(row));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public List<Patient> findPatients(Patient.Filter filter){
+
+    lock.readLock().lock();
+    try {
+      // Evaluate filter criteria once per Gender value or distinct String value, not per row
+      var genderMask = new boolean[GENDERS.length];
+      filter.gender().ifPresentOrElse(
+        set -> set.forEach(g -> genderMask[g.ordinal()] = true),
+        () -> Arrays.fill(genderMask,true)
+      );
+
+      var familyNameCodes = filter.familyName().map(n -> names.matching(s -> s.contains(n)));
+      var streetCodes = filter.address().flatMap(Address.Filter::street).map(n -> places.matching(s -> s.contains(n)));
+      var cityCodes = filter.address().flatMap(Address.Filter::city).map(n -> places.matching(s -> s.contains(n)));
+
+      var from = filter.birthDatePeriod().map(p -> (int) p.start().toEpochDay()).orElse(Integer.MIN_VALUE);
+      var to = filter.birthDatePeriod().flatMap(p -> p.end()).map(d -> (int) d.toEpochDay()).orElse(Integer.MAX_VALUE);
+
+      var result = new ArrayList<Patient>();
+
+      for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)){
+        if (
+          genderMask[genders[row]] &&
+          birthDates[row] >= from && birthDates[row] <= to &&
+          (familyNameCodes.isEmpty() || familyNameCodes.get().get(familyNames[row])) &&
+          (streetCodes.isEmpty() || streetCodes.get().get(streets[row])) &&
+          (cityCodes.isEmpty() || cityCodes.get().get(cities[row]))
+        ){
+          result.add(read(row));
+        }
+      }
+
+      return result;
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public Optional<Patient> deletePatient(Id<Patient> id) throws Exception {
+
+    var key = Key.of(id);
+
+    lock.writeLock().lock();
+    try {
+      var row = findRow(key);
+      if (row < 0) return Optional.empty();
+
+      var patient = read(row);
+
+      removeKey(key);
+      live.clear(row);
+      otherIds.remove(row);
+      if (freeCount == freeRows.length) freeRows = Arrays.copyOf(freeRows,freeCount * 2);
+      freeRows[freeCount++] = row;
+
+      return Optional.of(patient);
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package de.hsrt.meti.pms.repo.inmem;
+
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+
+/*
+  Dictionary encoding of String values: Each distinct value is stored once and referred to by its int code.
+  Codes are never reclaimed, so the Dictionary grows with the number of distinct values ever encoded.
+
+  Not thread-safe: Synchronization is up to the owning store.
+*/
+final class Dictionary
+{
+
+  private final Map<String,Integer> codes = new HashMap<>();
+
+  private String[] values = new String[64];
+
+
+  int encode(String value){
+    return codes.computeIfAbsent(
+      value,
+      v -> {
+        var code = codes.size();
+        if (code == values.length) values = Arrays.copyOf(values,code * 2);
+        values[code] = v;
+        return code;
+      }
+    );
+  }
+
+
+  String decode(int code){
+    return values[code];
+  }
+
+
+  boolean contains(String value){
+    return codes.containsKey(value);
+  }
+
+
+  int size(){
+    return codes.size();
+  }
+
+
+  // Codes of all values matching the predicate, so that a filter can be evaluated
+  // once per distinct value instead of once per row
+  BitSet matching(Predicate<String> predicate){
+    var result = new BitSet(codes.size());
+    for (int code = 0; code < codes.size(); code++){
+      if (predicate.test(values[code])) result.set(code);
+    }
+    return result;
+  }
+
+}
@@ -1,11 +1,16 @@
 package de.hsrt.meti.pms.repo.inmem;
 
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
 import static java.util.stream.Collectors.toList;
 import static java.util.UUID.randomUUID;
 import de.hsrt.meti.pms.core.Id;
@@ -26,27 +31,89 @@ class InMemRepository implements Repository
 
   }
 
+  // ConcurrentHashMap instead of HashMap, so that one instance can be shared across threads:
+  // reads are lock-free, writes only lock the affected hash bin instead of the whole map
   private final Map<Id<Patient>,Patient> patients;
 
+  // Optional secondary indexes for findPatients(...), see PatientIndex
+  private final Optional<PatientIndex> index;
+
+  // Optional write-ahead log, to keep the content across restarts, see WriteAheadLog
+  private final Optional<WriteAheadLog> log;
+
+  // Striped locks, which order the changes of the same Patient to map, index and log.
+  // Not ConcurrentHashMap.compute(...): its lock on the hash bin must not be held while waiting for the log write
+  private static final int STRIPES = 64;
+  private final Lock[] stripes = Stream.generate(ReentrantLock::new).limit(STRIPES).toArray(Lock[]::new);
+
+  private static final Runnable NOOP = () -> {};
+
 
   InMemRepository(){
-    this.patients = new HashMap<>();
+    this(Boolean.getBoolean("pms.repo.inmem.indexes"),WriteAheadLog.Config.fromSystemProperties());
+  }
+
+  InMemRepository(boolean indexed){
+    this(indexed,Optional.empty());
+  }
+
+  InMemRepository(boolean indexed, Optional<WriteAheadLog.Config> wal){
+    this.patients = new ConcurrentHashMap<>();
+    this.index    = indexed ? Optional.of(new PatientIndex()) : Optional.empty();
+
+    // Recover the content from the log before accepting any calls
+    this.log =
+      wal.map(
+        config -> WriteAheadLog.open(
+          config,
+          patient -> store(patient,NOOP),
+          id -> remove(id,NOOP),
+          patients::values
+        )
+      );
   }
 
 
   @Override
   public Id<Patient> patientId(){
-    // Create new ID
-    var id = new Id<Patient>(randomUUID().toString());
-
-    // To be absolutely sure: Check if ID already is in use, then either recurse or return it;
-    return patients.containsKey(id) ? patientId() : id;
+    // Random UUIDs don't collide in practice, so there's no need to keep track of the IDs handed out
+    return new Id<Patient>(randomUUID().toString());
   }
 
 
   @Override
   public void save(Patient patient) throws Exception {
-    patients.put(patient.id(),patient);
+    if (log.isPresent()){
+      log.get().append(WriteAheadLog.PUT,PatientCodec.encode(patient),logging -> store(patient,logging));
+    } else {
+      store(patient,NOOP);
+    }
+  }
+
+
+  private Lock stripe(Id<Patient> id){
+    return stripes[Math.floorMod(id.hashCode(),STRIPES)];
+  }
+
+
+  private void store(Patient patient, Runnable logging){
+    if (index.isPresent() || logging != NOOP){
+      // Update index entries and append to the log under the Patient's lock,
+      // so that concurrent saves of the same Patient can't interleave their index updates or log records.
+      // The log record is written first: if that fails, the exception leaves map and index unchanged
+      var lock = stripe(patient.id());
+      lock.lock();
+      try {
+        logging.run();
+        var previous = Optional.ofNullable(patients.get(patient.id()));
+        index.ifPresent(idx -> idx.put(previous,patient));
+        patients.put(patient.id(),patient);
+      } finally {
+        lock.unlock();
+      }
+    } else {
+      patients.put(patient.id(),patient);
+    }
   }
 
 
@@ -58,17 +125,9 @@ class InMemRepository implements Repository
 
 
 
-  private static Predicate<Patient> toPredicate(Patient.Filter filter){ 
-    return patient -> {
-      return filter.gender().map(set -> set.contains(patient.gender())).orElse(true) &&
-        filter.familyName().map(name -> patient.familyName().contains(name)).orElse(true) &&
-        filter.birthDatePeriod().map(period -> period.contains(patient.birthDate(),(d1,d2) -> d1.compareTo(d2))).orElse(true) &&
-        filter.address().map(
-          address -> 
-            address.street().map(s -> patient.address().street().contains(s)).orElse(true) &&
-            address.city().map(s -> patient.address().city().contains(s)).orElse(true)
-        ).orElse(true);
-    };
+  // The criteria as defined by Patient.Filter.matches(...)
+  static Predicate<Patient> toPredicate(Patient.Filter filter){ 
+    return filter::matches;
   }
 
 /*
@@ -102,20 +161,102 @@ class InMemRepository implements Repository
   }
 */
 
+  // Below this size, splitting a scan over several threads costs more than it saves
+  private static final int PARALLEL_SCAN_THRESHOLD = 10_000;
+
   @Override
   public List<Patient> findPatients(Patient.Filter filter){ 
+    return stream(filter,true).collect(toList());
+  }
+
+
+  @Override
+  public Patient.Page findPatients(Patient.Filter filter, Patient.PageRequest page){
+    return
+      index.isPresent() ?
+        page.toPage(index.get().page(page,toPredicate(filter))) :
+        Repository.super.findPatients(filter,page);
+  }
+
+
+  // Sequential, as the caller consumes Patients one by one
+  @Override
+  public Stream<Patient> streamPatients(Patient.Filter filter){ 
+    return stream(filter,false);
+  }
+
+
+  private Stream<Patient> stream(Patient.Filter filter, boolean parallel){
+
+    var predicate = toPredicate(filter);
+
+    // If an index lookup is more selective than a full scan, only check the candidates it yields
+    var candidates = index.flatMap(idx -> idx.candidates(filter));
+
+    if (candidates.isPresent()){
+      return
+        candidates.get()
+          .stream()
+          .map(patients::get)
+          .filter(Objects::nonNull)
+          .filter(predicate);
+    }
+
+    var values = patients.values();
 
     return
-      patients.values()
-        .stream()
-        .filter(toPredicate(filter))
-        .collect(toList());
+      (parallel && values.size() >= PARALLEL_SCAN_THRESHOLD ? values.parallelStream() : values.stream())
+        .filter(predicate);
   }
 
+
   @Override
   public Optional<Patient> deletePatient(Id<Patient> id) throws Exception {
+    if (log.isPresent()){
+      var patient = new Patient[1];
+      log.get().append(WriteAheadLog.DELETE,PatientCodec.encode(id),logging -> patient[0] = remove(id,logging).orElse(null));
+      return Optional.ofNullable(patient[0]);
+    } else {
+      return remove(id,NOOP);
+    }
+  }
+
+
+  private Optional<Patient> remove(Id<Patient> id, Runnable logging){
+
+    Optional<Patient> patient;
+
+    if (index.isPresent() || logging != NOOP){
+      var lock = stripe(id);
+      lock.lock();
+      try {
+        // Deleting a non-existing Patient is void, so nothing is logged
+        patient = Optional.ofNullable(patients.get(id));
+        if (patient.isPresent()){
+          logging.run();
+          index.ifPresent(idx -> idx.remove(patient.get()));
+          patients.remove(id);
+        }
+      } finally {
+        lock.unlock();
+      }
+    } else {
+      patient = Optional.ofNullable(patients.remove(id));
+    }
+
+    return patient;
+  }
+
+
+  // --------------------------------------------------------------------------
+  // Write-ahead log maintenance (no-ops without log)
+
+  long snapshot() throws IOException {
+    return log.isPresent() ? log.get().snapshot() : 0;
+  }
 
-    return Optional.ofNullable(patients.remove(id));
+  void close(){
+    log.ifPresent(WriteAheadLog::close);
   }
 
 
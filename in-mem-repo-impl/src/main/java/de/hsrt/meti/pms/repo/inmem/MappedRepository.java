@@ -0,0 +1,348 @@
+package de.hsrt.meti.pms.repo.inmem;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import static java.util.UUID.randomUUID;
+import static java.util.stream.Collectors.toList;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.Repository;
+import de.hsrt.meti.pms.util.SegmentLog;
+
+
+/*
+  Repository keeping Patient records off-heap in memory-mapped files, so that they survive a restart:
+
+  - Records are appended to a SegmentLog of fixed-size, memory-mapped segment files,
+    with type PUT (body: encoded Patient) or DELETE (body: encoded ID).
+  - The heap only holds an index from Patient ID to record location (segment, offset).
+    On restart, segments are re-mapped and the index rebuilt by reading record headers and IDs,
+    without decoding the Patient records themselves, which are only decoded when read.
+  - Overwritten and deleted records are garbage. Once garbage exceeds live data, the live records
+    are copied to a new generation of segments, which replaces the old one by atomic update of the CURRENT file.
+
+  Writes go to the OS page cache through the mapping, so they survive a crash of the process immediately,
+  but only survive a crash of the OS after flush().
+*/
+final class MappedRepository implements Repository
+{
+
+  // Service Provider Interface (SPI)
+  public static final class Provider implements Repository.Provider
+  {
+    @Override
+    public Repository getInstance(){
+      return new MappedRepository(
+        Path.of(Optional.ofNullable(System.getProperty("pms.repo.mapped.dir")).orElse("pms-data")),
+        Long.getLong("pms.repo.mapped.segmentSize",64L * 1024 * 1024)
+      );
+    }
+
+  }
+
+
+  private static final int MAGIC = 0x504D5331; // "PMS1"
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Path dir;
+  private final long segmentSize;
+
+  private long generation;
+  private SegmentLog segments;
+
+  private Map<Id<Patient>,Long> locations = new HashMap<>();
+  private long liveBytes = 0;
+  private long garbageBytes = 0;
+  private long retryCompactionAt = 0;  // garbage bytes, after a failed compaction
+
+
+  MappedRepository(Path dir, long segmentSize){
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+
+    try {
+      Files.createDirectories(dir);
+      open();
+    } catch (IOException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Segment files
+
+  private Path currentFile(){
+    return dir.resolve("CURRENT");
+  }
+
+  private Path segmentFile(long generation, int n){
+    return dir.resolve(String.format("patients-%d-%05d.seg",generation,n));
+  }
+
+  // The segments of a generation, passing the records of existing ones to recovery
+  private SegmentLog openGeneration(long generation, SegmentLog.Recovery recovery) throws IOException {
+    return SegmentLog.open(n -> segmentFile(generation,n),MAGIC,segmentSize,recovery);
+  }
+
+
+  private void open() throws IOException {
+
+    generation =
+      Files.exists(currentFile()) ?
+        Long.parseLong(Files.readString(currentFile()).trim()) :
+        0;
+
+    // Remove leftovers of other generations, e.g. of an interrupted compaction
+    var prefix = "patients-" + generation + "-";
+    try (var files = Files.list(dir)){
+      for (var file : files.collect(toList())){
+        var name = file.getFileName().toString();
+        if (name.startsWith("patients-") && !name.startsWith(prefix)) Files.deleteIfExists(file);
+      }
+    }
+
+    // Rebuild the index from the record types and IDs
+    segments =
+      openGeneration(
+        generation,
+        (type,location,body) -> {
+          var id = PatientCodec.decodeId(body);
+          if (type == PUT) locations.put(id,location); else locations.remove(id);
+        }
+      );
+
+    for (var location : locations.values()) liveBytes += segments.recordSize(location);
+    garbageBytes = segments.recordBytes() - liveBytes;
+
+    if (!Files.exists(currentFile())){
+      writeCurrent(generation);
+    }
+  }
+
+
+  private void writeCurrent(long generation) throws IOException {
+    var tmp = dir.resolve("CURRENT.tmp");
+    Files.writeString(tmp,Long.toString(generation));
+    Files.move(tmp,currentFile(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Records
+
+  private int recordSize(long location){
+    return segments.recordSize(location);
+  }
+
+
+  private ByteBuffer record(long location){
+    return segments.read(location);
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Repository operations
+
+  @Override
+  public Id<Patient> patientId(){
+    Id<Patient> id;
+    do {
+      id = new Id<Patient>(randomUUID().toString());
+    } while (findLocation(id).isPresent());
+
+    return id;
+  }
+
+
+  private Optional<Long> findLocation(Id<Patient> id){
+    lock.readLock().lock();
+    try {
+      return Optional.ofNullable(locations.get(id));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public void save(Patient patient) throws Exception {
+
+    var body = ByteBuffer.wrap(PatientCodec.encode(patient));
+
+    lock.writeLock().lock();
+    try {
+      var location = segments.append(PUT,body);
+      var previous = locations.put(patient.id(),location);
+
+      liveBytes += recordSize(location);
+      if (previous != null){
+        liveBytes -= recordSize(previous);
+        garbageBytes += recordSize(previous);
+      }
+
+      compactIfNeeded();
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  @Override
+  public Optional<Patient> findPatient(Id<Patient> id){
+    lock.readLock().lock();
+    try {
+      return Optional.ofNullable(locations.get(id)).map(loc -> PatientCodec.decode(record(loc)));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public List<Patient> findPatients(Patient.Filter filter){
+    lock.readLock().lock();
+    try {
+      return
+        locations.values()
+          .stream()
+          .map(loc -> PatientCodec.decode(record(loc)))
+          .filter(InMemRepository.toPredicate(filter))
+          .collect(toList());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public Optional<Patient> deletePatient(Id<Patient> id) throws Exception {
+
+    var body = ByteBuffer.wrap(PatientCodec.encode(id));
+
+    lock.writeLock().lock();
+    try {
+      var previous = locations.remove(id);
+      if (previous == null) return Optional.empty();
+
+      var patient = PatientCodec.decode(record(previous));
+
+      var location = segments.append(DELETE,body);
+
+      liveBytes -= recordSize(previous);
+      garbageBytes += recordSize(previous) + recordSize(location);
+
+      compactIfNeeded();
+
+      return Optional.of(patient);
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Maintenance
+
+  // Force written data to the storage device
+  void flush(){
+    lock.readLock().lock();
+    try {
+      segments.flush();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  // Called after a write is appended, so a failed compaction must not fail the write: it leaves the current
+  // generation intact, and is retried once another segment size of garbage has accumulated
+  private void compactIfNeeded(){
+    if (garbageBytes > liveBytes && garbageBytes > segmentSize && garbageBytes >= retryCompactionAt){
+      try {
+        compact();
+      } catch (IOException | RuntimeException e){
+        retryCompactionAt = garbageBytes + segmentSize;
+      }
+    }
+  }
+
+
+  // Copy all live records into a new generation of segments, and switch over to it
+  void compact() throws IOException {
+    lock.writeLock().lock();
+    try {
+      var newGeneration = generation + 1;
+      var newLocations = new HashMap<Id<Patient>,Long>();
+
+      // The current generation stays untouched until the new one is complete
+      SegmentLog newSegments = null;
+
+      try {
+        newSegments = openGeneration(newGeneration,(type,location,body) -> {});
+
+        for (var entry : locations.entrySet()){
+          newLocations.put(entry.getKey(),newSegments.append(PUT,record(entry.getValue())));
+        }
+
+        newSegments.flush();
+        writeCurrent(newGeneration);
+
+      } catch (IOException | RuntimeException e){
+        // Remove the incomplete generation, so that a later compaction doesn't find its records
+        for (int n = 0; Files.exists(segmentFile(newGeneration,n)); n++){
+          try {
+            Files.deleteIfExists(segmentFile(newGeneration,n));
+          } catch (IOException suppressed){
+            e.addSuppressed(suppressed);
+          }
+        }
+        throw e;
+      }
+
+      var oldGeneration = generation;
+      var oldCount = segments.segmentCount();
+
+      generation = newGeneration;
+      segments = newSegments;
+      locations = newLocations;
+      garbageBytes = 0;
+      retryCompactionAt = 0;
+
+      // Old files stay mapped until garbage-collected, but can already be unlinked (on POSIX systems);
+      // otherwise they are removed on next start
+      for (int n = 0; n < oldCount; n++){
+        try {
+          Files.deleteIfExists(segmentFile(oldGeneration,n));
+        } catch (IOException e){
+          // removed on next start
+        }
+      }
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+package de.hsrt.meti.pms.repo.inmem;
+
+
+import java.nio.ByteBuffer;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.util.Codecs;
+
+
+/*
+  Binary encoding of Patients for file-based storage, as by Codecs (util): varint lengths and dates,
+  16-byte UUIDs, starting with the schema version, followed by the ID.
+*/
+final class PatientCodec
+{
+
+  private PatientCodec(){}
+
+
+  static byte[] encode(Patient patient){
+    return Codecs.encode(patient);
+  }
+
+
+  static byte[] encode(Id<Patient> id){
+    return Codecs.encode(id);
+  }
+
+
+  // Decode the Patient starting at the buffer's position, advancing it
+  static Patient decode(ByteBuffer buf){
+    return Codecs.decodePatient(buf);
+  }
+
+
+  // Decode only the ID at the buffer's position (the start of an encoded Patient or ID)
+  static Id<Patient> decodeId(ByteBuffer buf){
+    return Codecs.decodeId(buf);
+  }
+
+}
@@ -0,0 +1,282 @@
+package de.hsrt.meti.pms.repo.inmem;
+
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import de.hsrt.meti.pms.core.Address;
+import de.hsrt.meti.pms.core.Gender;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.Patient.PageRequest;
+import de.hsrt.meti.pms.core.Patient.PageRequest.SortKey;
+import de.hsrt.meti.pms.util.TrigramIndex;
+
+
+/*
+  Secondary indexes over the Patients of an InMemRepository, to answer a Patient.Filter
+  without scanning all Patients:
+
+  - Gender:    one RowSet per Gender value (ends up as bitmap, given the low cardinality)
+  - birthDate: sorted map from date to RowSet, for range lookups of a Period<LocalDate>
+  - familyName/street/city: TrigramIndex for substring matches. Values shorter than a trigram can't be
+    looked up, so such criteria are left to the other indexes, or to a scan
+  - Per PageRequest.SortKey: sorted set of (sort value, ID) entries, for keyset pagination
+
+  Each Patient is assigned an int row number, which the RowSets refer to.
+  All structures are guarded by one ReadWriteLock, so queries run concurrently with each other.
+*/
+final class PatientIndex
+{
+
+  // Below this ratio of candidates to Patients, a full scan is cheaper than the index lookup
+  private static final int MIN_SELECTIVITY = 2;
+
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Map<Id<Patient>,Integer> rows = new HashMap<>();
+
+  @SuppressWarnings({"unchecked","rawtypes"})
+  private Id<Patient>[] ids = new Id[1024];
+
+  private int[] freeRows = new int[16];
+  private int freeCount = 0;
+  private int nextRow = 0;
+
+  private final Map<Gender,RowSet> genders = new EnumMap<>(Gender.class);
+  private final NavigableMap<LocalDate,RowSet> birthDates = new TreeMap<>();
+
+  private final TrigramIndex familyNameGrams = new TrigramIndex();
+  private final TrigramIndex cityGrams = new TrigramIndex();
+  private final TrigramIndex streetGrams = new TrigramIndex();
+
+  // Entry of a sorted index; patient is null for search keys
+  private static record SortEntry(Object value, String id, Patient patient)
+  {
+    @SuppressWarnings("unchecked")
+    static final Comparator<SortEntry> ORDER =
+      (a,b) -> {
+        var c = ((Comparable<Object>) a.value()).compareTo(b.value());
+        return c != 0 ? c : a.id().compareTo(b.id());
+      };
+
+    static SortEntry of(SortKey key, Patient patient){
+      return new SortEntry(
+        switch(key){
+          case FAMILY_NAME -> patient.familyName();
+          case BIRTH_DATE  -> patient.birthDate();
+        },
+        patient.id().value(),
+        patient
+      );
+    }
+  }
+
+  private final Map<SortKey,NavigableSet<SortEntry>> sorted = new EnumMap<>(SortKey.class);
+  {
+    for (var key : SortKey.values()) sorted.put(key,new TreeSet<>(SortEntry.ORDER));
+  }
+
+
+
+  // Index a Patient, replacing the entries of the previous version, if any
+  void put(Optional<Patient> previous, Patient patient){
+    lock.writeLock().lock();
+    try {
+      var row = rows.computeIfAbsent(patient.id(), id -> allocateRow(id));
+      previous.ifPresent(p -> unindex(row,p));
+      index(row,patient);
+
+      familyNameGrams.update(row,previous.map(Patient::familyName),patient.familyName());
+      cityGrams.update(row,previous.map(p -> p.address().city()),patient.address().city());
+      streetGrams.update(row,previous.map(p -> p.address().street()),patient.address().street());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  void remove(Patient patient){
+    lock.writeLock().lock();
+    try {
+      var row = rows.remove(patient.id());
+      if (row != null){
+        unindex(row,patient);
+        familyNameGrams.remove(row,patient.familyName());
+        cityGrams.remove(row,patient.address().city());
+        streetGrams.remove(row,patient.address().street());
+        ids[row] = null;
+        if (freeCount == freeRows.length) freeRows = Arrays.copyOf(freeRows,freeCount * 2);
+        freeRows[freeCount++] = row;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  private int allocateRow(Id<Patient> id){
+    var row = freeCount > 0 ? freeRows[--freeCount] : nextRow++;
+    if (row == ids.length) ids = Arrays.copyOf(ids,ids.length * 2);
+    ids[row] = id;
+    return row;
+  }
+
+
+  private void index(int row, Patient patient){
+    sorted.forEach((key,set) -> set.add(SortEntry.of(key,patient)));
+    genders.computeIfAbsent(patient.gender(), g -> new RowSet()).add(row);
+    birthDates.computeIfAbsent(patient.birthDate(), d -> new RowSet()).add(row);
+  }
+
+
+  private void unindex(int row, Patient patient){
+    sorted.forEach((key,set) -> set.remove(SortEntry.of(key,patient)));
+    unindex(genders,patient.gender(),row);
+    unindex(birthDates,patient.birthDate(),row);
+  }
+
+
+  private static <K> void unindex(Map<K,RowSet> index, K key, int row){
+    var set = index.get(key);
+    if (set != null){
+      set.remove(row);
+      if (set.isEmpty()) index.remove(key);
+    }
+  }
+
+
+
+  // Candidate lookup from one index: estimated number of candidate rows, and how to collect them
+  private static record Candidates(long estimate, Consumer<BitSet> collector)
+  {
+    static Candidates of(Collection<RowSet> sets){
+      return new Candidates(
+        sets.stream().mapToLong(RowSet::size).sum(),
+        rows -> sets.forEach(set -> set.addTo(rows))
+      );
+    }
+  }
+
+
+  private Optional<Candidates> byGender(Patient.Filter filter){
+    return filter.gender().map(
+      set -> Candidates.of(set.stream().map(genders::get).filter(s -> s != null).toList())
+    );
+  }
+
+
+  private Optional<Candidates> byBirthDate(Patient.Filter filter){
+    return filter.birthDatePeriod().map(
+      period -> Candidates.of(
+        period.end()
+          .map(end -> end.isBefore(period.start()) ? Map.<LocalDate,RowSet>of() : birthDates.subMap(period.start(),true,end,true))
+          .orElseGet(() -> birthDates.tailMap(period.start(),true))
+          .values()
+      )
+    );
+  }
+
+
+  private static Optional<Candidates> byTrigrams(TrigramIndex index, Optional<String> part){
+    return part.flatMap(
+      s -> {
+        var estimate = index.estimate(s);
+        return
+          estimate.isPresent() ?
+            Optional.of(
+              new Candidates(
+                estimate.getAsInt(),
+                rows -> index.candidates(s).ifPresent(docs -> { for (int doc : docs) rows.set(doc); })
+              )
+            ) :
+            Optional.empty();
+      }
+    );
+  }
+
+
+  /*
+    Query planner: Determine candidate lookups from all indexes applicable to the Filter,
+    and pick the most selective one, i.e. with the fewest candidate rows.
+    Returns the IDs of the candidate Patients, or nothing if a full scan would be cheaper.
+
+    Candidates are only a superset of the result: criteria not covered by the chosen index still
+    have to be checked, just like criteria that were covered, because a Patient might have been
+    updated concurrently in between index lookup and retrieval.
+  */
+  Optional<List<Id<Patient>>> candidates(Patient.Filter filter){
+    lock.readLock().lock();
+    try {
+      var best =
+        Stream.of(
+          byGender(filter),
+          byBirthDate(filter),
+          byTrigrams(familyNameGrams,filter.familyName()),
+          byTrigrams(cityGrams,filter.address().flatMap(Address.Filter::city)),
+          byTrigrams(streetGrams,filter.address().flatMap(Address.Filter::street))
+        )
+        .flatMap(Optional::stream)
+        .map(c -> Map.entry(c.estimate(),c))
+        .min(Map.Entry.comparingByKey());
+
+      if (best.isEmpty() || best.get().getKey() * MIN_SELECTIVITY > rows.size()) return Optional.empty();
+
+      var matches = new BitSet();
+      best.get().getValue().collector().accept(matches);
+
+      var result = new ArrayList<Id<Patient>>(matches.cardinality());
+      matches.stream().forEach(row -> result.add(ids[row]));
+
+      return Optional.of(result);
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+
+  // Up to page.limit() + 1 Patients matching the predicate, in sort order after the page's cursor position,
+  // read from the sorted index, so that only the page (and non-matching Patients in between) is visited
+  List<Patient> page(PageRequest page, Predicate<Patient> predicate){
+    lock.readLock().lock();
+    try {
+      var set = sorted.get(page.sortKey());
+
+      var entries =
+        page.after()
+          .map(pos -> set.tailSet(new SortEntry(pos.value(),pos.id().value(),null),false))
+          .orElse(set);
+
+      return
+        entries.stream()
+          .map(SortEntry::patient)
+          .filter(predicate)
+          .limit(page.limit() + 1L)
+          .toList();
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+package de.hsrt.meti.pms.repo.inmem;
+
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+
+/*
+  Set of row numbers, as posting list of a secondary index.
+
+  Starts out as sorted int[] (4 bytes per row), and switches to a BitSet (1 bit per row up to the highest one)
+  as soon as the set becomes dense enough for the bitmap to be the smaller representation.
+  Low-cardinality attributes like Gender thus end up as bitmaps, highly selective ones like birth date stay arrays.
+
+  Not thread-safe: Synchronization is up to the owning index.
+*/
+final class RowSet
+{
+
+  private int[] array = new int[4];
+  private BitSet bits = null;
+  private int size = 0;
+
+
+  int size(){
+    return size;
+  }
+
+
+  boolean isEmpty(){
+    return size == 0;
+  }
+
+
+  void add(int row){
+
+    if (bits != null){
+      if (!bits.get(row)){
+        bits.set(row);
+        size++;
+      }
+      return;
+    }
+
+    var pos = Arrays.binarySearch(array,0,size,row);
+    if (pos >= 0) return;
+
+    var insertAt = -(pos + 1);
+    if (size == array.length) array = Arrays.copyOf(array,size * 2);
+    System.arraycopy(array,insertAt,array,insertAt + 1,size - insertAt);
+    array[insertAt] = row;
+    size++;
+
+    // Bitmap needs (highest row + 1) bits, the array 32 bits per row: switch once the bitmap is smaller
+    if (size >= 64 && (long) size * 32 > array[size - 1] + 1L){
+      bits = new BitSet(array[size - 1] + 1);
+      for (int i = 0; i < size; i++) bits.set(array[i]);
+      array = null;
+    }
+  }
+
+
+  void remove(int row){
+
+    if (bits != null){
+      if (bits.get(row)){
+        bits.clear(row);
+        size--;
+      }
+      return;
+    }
+
+    var pos = Arrays.binarySearch(array,0,size,row);
+    if (pos < 0) return;
+
+    System.arraycopy(array,pos + 1,array,pos,size - pos - 1);
+    size--;
+  }
+
+
+  void forEach(IntConsumer action){
+    if (bits != null){
+      bits.stream().forEach(action);
+    } else {
+      for (int i = 0; i < size; i++) action.accept(array[i]);
+    }
+  }
+
+
+  void addTo(BitSet target){
+    if (bits != null){
+      target.or(bits);
+    } else {
+      for (int i = 0; i < size; i++) target.set(array[i]);
+    }
+  }
+
+}
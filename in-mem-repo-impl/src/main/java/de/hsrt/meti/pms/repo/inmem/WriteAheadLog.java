@@ -0,0 +1,569 @@
+package de.hsrt.meti.pms.repo.inmem;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.stream.Collectors.toList;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+
+
+/*
+  Write-ahead log (WAL) and snapshots, to make an InMemRepository durable:
+
+  - Each save/deletePatient is appended to the log as record [int length][int CRC32][long seq][byte type][body]
+    with type PUT (body: encoded Patient) or DELETE (body: encoded ID). The change is applied to the repository
+    only once its record has been written, so a failed write leaves the repository unchanged.
+  - Group commit: Appends are queued and written by a single writer thread, which writes
+    all queued records at once, and syncs them to disk according to the Fsync policy:
+    after every batch (ALWAYS), at most every n milliseconds (INTERVAL), or every n records (RECORDS).
+    Under ALWAYS, callers wait until their record is on disk, otherwise until it has been written to the OS.
+  - Snapshots: Every snapshotEvery records, the log is rotated to a new file, the repository content
+    written to a snapshot file, and log files covered by the snapshot are deleted.
+    The snapshot is taken while writes continue, so it may also contain later changes,
+    which is harmless because these are replayed from the log anyway, and records carry full state.
+  - Recovery: Load the latest snapshot, then replay newer log records, both in parallel:
+    snapshot records are independent, log records are partitioned by Patient ID, preserving their order per Patient.
+    Replay ends at the first incomplete or corrupt record: the log is truncated there, and later log files are set aside.
+*/
+final class WriteAheadLog
+{
+
+  public static enum FsyncMode { ALWAYS, INTERVAL, RECORDS }
+
+  public static record Fsync(FsyncMode mode, long value)
+  {
+    public Fsync {
+      // An interval of 0 would make the writer thread spin on the queue
+      if (mode != FsyncMode.ALWAYS && value < 1) throw new IllegalArgumentException("Fsync " + mode + " value must be at least 1: " + value);
+    }
+
+    // Parse "always", "interval:<ms>" or "records:<n>"
+    static Fsync parse(String s){
+      var parts = s.trim().toLowerCase().split(":");
+      var mode = FsyncMode.valueOf(parts[0].toUpperCase());
+      return new Fsync(mode, mode == FsyncMode.ALWAYS ? 0 : Long.parseLong(parts[1]));
+    }
+  }
+
+
+  public static record Config
+  (
+    Path dir,
+    Fsync fsync,
+    long snapshotEvery
+  )
+  {
+    static Optional<Config> fromSystemProperties(){
+      return
+        Optional.ofNullable(System.getProperty("pms.repo.inmem.wal.dir"))
+          .map(
+            dir -> new Config(
+              Path.of(dir),
+              Fsync.parse(System.getProperty("pms.repo.inmem.wal.fsync","always")),
+              Long.getLong("pms.repo.inmem.wal.snapshotEvery",1_000_000L)
+            )
+          );
+    }
+  }
+
+
+  static final byte PUT = 1;
+  static final byte DELETE = 2;
+  private static final byte ROTATE = 3; // internal marker, not written
+
+  private static final int HEADER = 17; // length, CRC32, seq, type
+
+  private static final int MAGIC = 0x504D5357; // "PMSW"
+
+
+  private static record Entry(long seq, byte type, byte[] body, CompletableFuture<Void> done){}
+
+
+  private final Config config;
+  private final Supplier<Collection<Patient>> state;
+
+  // Writers append under the shared lock, snapshots take the exclusive lock to determine
+  // a sequence number up to which all records have been applied to the repository
+  private final ReadWriteLock barrier = new ReentrantReadWriteLock();
+
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+  private long lastSeq = 0;
+
+  private FileChannel channel;
+  private final Thread writer;
+  private final ExecutorService snapshots = Executors.newSingleThreadExecutor(WriteAheadLog::daemon);
+  private final AtomicBoolean snapshotRunning = new AtomicBoolean(false);
+  private volatile boolean closed = false;
+  private volatile IOException failure = null;
+
+
+  private static Thread daemon(Runnable r){
+    var thread = new Thread(r,"pms-wal");
+    thread.setDaemon(true);
+    return thread;
+  }
+
+
+  /*
+    Open the log in config.dir(): recover the repository state by passing recovered Patients to put
+    and deleted IDs to delete (called concurrently, but in log order per Patient),
+    then start accepting appends. The state supplier provides the repository content for snapshots.
+  */
+  static WriteAheadLog open(
+    Config config,
+    Consumer<Patient> put,
+    Consumer<Id<Patient>> delete,
+    Supplier<Collection<Patient>> state
+  ){
+    try {
+      Files.createDirectories(config.dir());
+      return new WriteAheadLog(config,put,delete,state);
+    } catch (IOException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  private WriteAheadLog(
+    Config config,
+    Consumer<Patient> put,
+    Consumer<Id<Patient>> delete,
+    Supplier<Collection<Patient>> state
+  ) throws IOException {
+    this.config = config;
+    this.state  = state;
+
+    recover(put,delete);
+
+    this.writer = daemon(this::writeLoop);
+    this.writer.start();
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Files
+
+  private Path logFile(long firstSeq){
+    return config.dir().resolve(String.format("wal-%020d.log",firstSeq));
+  }
+
+  private Path snapshotFile(long seq){
+    return config.dir().resolve(String.format("snapshot-%020d.snap",seq));
+  }
+
+  private List<Path> files(String prefix) throws IOException {
+    try (var files = Files.list(config.dir())){
+      return
+        files.filter(f -> f.getFileName().toString().startsWith(prefix))
+          .filter(f -> !f.getFileName().toString().endsWith(".tmp") && !f.getFileName().toString().endsWith(".discarded"))
+          .sorted()
+          .collect(toList());
+    }
+  }
+
+  private static long seqOf(Path file){
+    var name = file.getFileName().toString();
+    return Long.parseLong(name.substring(name.indexOf('-') + 1,name.indexOf('.')));
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Records
+
+  private static ByteBuffer encode(long seq, byte type, byte[] body){
+    var buf = ByteBuffer.allocate(HEADER + body.length);
+    buf.putInt(HEADER - 4 + body.length);
+    buf.putInt(0);
+    buf.putLong(seq);
+    buf.put(type);
+    buf.put(body);
+    buf.putInt(4,crc(buf,8,HEADER - 8 + body.length));
+    return buf.flip();
+  }
+
+  private static int crc(ByteBuffer buf, int from, int length){
+    var crc = new CRC32();
+    crc.update(buf.duplicate().position(from).limit(from + length));
+    return (int) crc.getValue();
+  }
+
+
+  // Read the valid records of a log or snapshot file, starting at the given position;
+  // reading stops at the first incomplete or corrupt record, e.g. a partial write on crash
+  private static List<ByteBuffer> read(ByteBuffer file, int pos){
+    var records = new ArrayList<ByteBuffer>();
+    while (pos + HEADER <= file.limit()){
+      var length = file.getInt(pos);
+      if (length < HEADER - 4 || length > file.limit() - pos - 4 || crc(file,pos + 8,length - 4) != file.getInt(pos + 4)) break;
+      records.add(file.slice(pos + 8,length - 4));
+      pos += 4 + length;
+    }
+    return records;
+  }
+
+  private static long seq(ByteBuffer record){ return record.getLong(0); }
+
+  private static byte type(ByteBuffer record){ return record.get(8); }
+
+  private static ByteBuffer body(ByteBuffer record){ return record.slice(9,record.limit() - 9); }
+
+  private static int validLength(List<ByteBuffer> records, int start){
+    return start + records.stream().mapToInt(r -> r.limit() + 8).sum();
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Recovery
+
+  private void recover(Consumer<Patient> put, Consumer<Id<Patient>> delete) throws IOException {
+
+    var snapshot = files("snapshot-").stream().reduce((a,b) -> b);
+    var snapshotSeq = snapshot.map(WriteAheadLog::seqOf).orElse(0L);
+
+    // Snapshot records are independent of each other, so decode and apply them in any order
+    if (snapshot.isPresent()){
+      var buf = ByteBuffer.wrap(Files.readAllBytes(snapshot.get()));
+      if (buf.getInt(0) != MAGIC) throw new IOException("Invalid snapshot file " + snapshot.get());
+      read(buf,4)
+        .parallelStream()
+        .forEach(record -> put.accept(PatientCodec.decode(body(record))));
+    }
+
+    // Log records newer than the snapshot, partitioned by Patient ID and replayed in order within each partition
+    var records = new ArrayList<ByteBuffer>();
+    var logs = files("wal-");
+
+    for (int i = 0; i < logs.size(); i++){
+      var log = logs.get(i);
+      var buf = ByteBuffer.wrap(Files.readAllBytes(log));
+      var valid = read(buf,0);
+      valid.stream().filter(r -> seq(r) > snapshotSeq).forEach(records::add);
+
+      // Cut off a partially written tail or corrupt record. Records after it, also in later files,
+      // may depend on the lost ones, so these files are set aside (renamed to .discarded), and recovery ends here
+      if (validLength(valid,0) < buf.limit()){
+        try (var ch = FileChannel.open(log,WRITE)){
+          ch.truncate(validLength(valid,0));
+        }
+        for (var later : logs.subList(i + 1,logs.size())){
+          Files.move(later,later.resolveSibling(later.getFileName() + ".discarded"),StandardCopyOption.REPLACE_EXISTING);
+        }
+        logs = logs.subList(0,i + 1);
+        break;
+      }
+    }
+
+    var partitions = Runtime.getRuntime().availableProcessors();
+
+    var ids =
+      records.stream()
+        .map(r -> PatientCodec.decodeId(body(r)))
+        .toList();
+
+    IntStream.range(0,partitions)
+      .parallel()
+      .forEach(
+        p -> {
+          for (int i = 0; i < records.size(); i++){
+            if (Math.floorMod(ids.get(i).hashCode(),partitions) != p) continue;
+            var record = records.get(i);
+            if (type(record) == PUT) put.accept(PatientCodec.decode(body(record)));
+            else delete.accept(ids.get(i));
+          }
+        }
+      );
+
+    lastSeq = records.stream().mapToLong(WriteAheadLog::seq).max().orElse(snapshotSeq);
+
+    channel =
+      FileChannel.open(
+        logs.isEmpty() ? logFile(lastSeq + 1) : logs.get(logs.size() - 1),
+        CREATE,WRITE,APPEND
+      );
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Appending
+
+  /*
+    Append a record: apply is called with an action that writes the record,
+    which the caller must run right before it applies the change to its state,
+    while holding the lock that orders changes to the same Patient (e.g. a per-Patient lock),
+    so that log order and order of application are the same. The action returns once the record
+    has been written (synced, under FsyncMode.ALWAYS), and throws UncheckedIOException if that failed,
+    so that the caller doesn't apply the change. Other writes go on meanwhile and are committed
+    together with it (group commit). The action might not be run at all,
+    if the change turns out to be void (e.g. deleting a non-existing Patient).
+  */
+  void append(byte type, byte[] body, Consumer<Runnable> apply) throws IOException {
+
+    barrier.readLock().lock();
+    try {
+      apply.accept(
+        () -> {
+          var done = new CompletableFuture<Void>();
+          enqueue(type,body,done);
+          try {
+            done.join();
+          } catch (CompletionException e){
+            throw new UncheckedIOException(e.getCause() instanceof IOException io ? io : new IOException(e.getCause()));
+          }
+        }
+      );
+    } catch (UncheckedIOException e){
+      throw e.getCause();
+    } finally {
+      barrier.readLock().unlock();
+    }
+  }
+
+
+  // Checks for failure and closing under the same lock as fail(...) and close(), so that no entry is
+  // queued after the writer thread has stopped: it would never be completed
+  private synchronized void enqueue(byte type, byte[] body, CompletableFuture<Void> done){
+    if (failure != null){
+      done.completeExceptionally(new IOException("Write-ahead log failed earlier",failure));
+    } else if (closed){
+      done.completeExceptionally(new IOException("Write-ahead log is closed"));
+    } else {
+      queue.add(new Entry(type == ROTATE ? lastSeq : ++lastSeq,type,body,done));
+    }
+  }
+
+
+  private synchronized void fail(IOException e, List<Entry> batch){
+    failure = e;
+    batch.forEach(entry -> entry.done().completeExceptionally(e));
+    queue.forEach(entry -> entry.done().completeExceptionally(e));
+    queue.clear();
+  }
+
+
+  private void writeLoop(){
+
+    var fsync = config.fsync();
+    var unsynced = 0L;
+    var lastSync = System.currentTimeMillis();
+    var sinceSnapshot = 0L;
+
+    var batch = new ArrayList<Entry>();
+
+    while (!closed || !queue.isEmpty()){
+      try {
+        var first =
+          fsync.mode() == FsyncMode.INTERVAL ?
+            queue.poll(fsync.value(),TimeUnit.MILLISECONDS) :
+            queue.poll(100,TimeUnit.MILLISECONDS);
+
+        if (first != null){
+          batch.add(first);
+          queue.drainTo(batch);
+        }
+
+        // Records written to the current file, not yet completed under FsyncMode.ALWAYS
+        var written = new ArrayList<Entry>();
+        var chunk = new ArrayList<Entry>();
+
+        for (var entry : batch){
+          if (entry.type() == ROTATE){
+            write(chunk);
+            written.addAll(chunk);
+            chunk.clear();
+
+            channel.force(false);
+            written.forEach(e -> e.done().complete(null));
+            written.clear();
+
+            channel.close();
+            channel = FileChannel.open(logFile(entry.seq() + 1),CREATE,WRITE,APPEND);
+            unsynced = 0;
+            lastSync = System.currentTimeMillis();
+            entry.done().complete(null);
+          } else {
+            chunk.add(entry);
+            unsynced++;
+            sinceSnapshot++;
+          }
+        }
+        write(chunk);
+        written.addAll(chunk);
+
+        var now = System.currentTimeMillis();
+
+        var sync =
+          unsynced > 0 &&
+          switch (fsync.mode()){
+            case ALWAYS   -> true;
+            case INTERVAL -> now - lastSync >= fsync.value();
+            case RECORDS  -> unsynced >= fsync.value();
+          };
+
+        if (sync){
+          channel.force(false);
+          unsynced = 0;
+          lastSync = now;
+        }
+
+        if (fsync.mode() == FsyncMode.ALWAYS){
+          written.forEach(e -> e.done().complete(null));
+        }
+
+        if (sinceSnapshot >= config.snapshotEvery() && snapshotRunning.compareAndSet(false,true)){
+          sinceSnapshot = 0;
+          try {
+            snapshots.submit(
+              () -> {
+                try {
+                  snapshot();
+                } catch (IOException e){
+                  // Not fatal: the log still holds all records, and the next snapshot will be tried later
+                } finally {
+                  snapshotRunning.set(false);
+                }
+              }
+            );
+          } catch (RejectedExecutionException e){
+            // Closing
+            snapshotRunning.set(false);
+          }
+        }
+
+      } catch (IOException e){
+        fail(e,batch);
+        return;
+      } catch (InterruptedException e){
+        fail(new InterruptedIOException("Write-ahead log writer interrupted"),batch);
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+
+    try {
+      channel.force(false);
+      channel.close();
+    } catch (IOException e){
+      failure = e;
+    }
+  }
+
+
+  private void write(List<Entry> entries) throws IOException {
+    if (entries.isEmpty()) return;
+
+    var buffers =
+      entries.stream()
+        .map(e -> encode(e.seq(),e.type(),e.body()))
+        .toArray(ByteBuffer[]::new);
+
+    long remaining = 0;
+    for (var b : buffers) remaining += b.remaining();
+    while (remaining > 0) remaining -= channel.write(buffers);
+
+    if (config.fsync().mode() != FsyncMode.ALWAYS){
+      entries.forEach(e -> e.done().complete(null));
+    }
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Snapshots
+
+  // Write a snapshot of the current state and drop the log files it covers; returns the snapshot's sequence number
+  long snapshot() throws IOException {
+
+    var rotated = new CompletableFuture<Void>();
+    long seq;
+
+    // No write is in progress while holding the exclusive lock, so all records up to seq are applied
+    barrier.writeLock().lock();
+    try {
+      seq = lastSeq;
+      enqueue(ROTATE,new byte[0],rotated);
+    } finally {
+      barrier.writeLock().unlock();
+    }
+
+    try {
+      rotated.join();
+    } catch (CompletionException e){
+      throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+    }
+
+    var tmp = config.dir().resolve(snapshotFile(seq).getFileName() + ".tmp");
+
+    try (var out = FileChannel.open(tmp,CREATE,WRITE,READ)){
+      out.truncate(0);
+      out.write(ByteBuffer.allocate(4).putInt(0,MAGIC));
+      for (var patient : state.get()){
+        var record = encode(seq,PUT,PatientCodec.encode(patient));
+        while (record.hasRemaining()) out.write(record);
+      }
+      out.force(true);
+    }
+
+    Files.move(tmp,snapshotFile(seq),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+
+    for (var old : files("snapshot-")){
+      if (seqOf(old) < seq) Files.deleteIfExists(old);
+    }
+    for (var log : files("wal-")){
+      if (seqOf(log) <= seq) Files.deleteIfExists(log);
+    }
+
+    return seq;
+  }
+
+
+  // Let a running snapshot complete, then write all pending records and stop the writer thread
+  void close(){
+    snapshots.shutdown();
+    try {
+      // The snapshot needs the writer thread to rotate the log, so stop it only afterwards
+      snapshots.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+      synchronized (this){
+        closed = true;
+      }
+      writer.join();
+    } catch (InterruptedException e){
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -1,9 +1,29 @@
 package de.hsrt.meti.pms.repo.inmem;
 
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static java.util.stream.Collectors.toSet;
+import de.hsrt.meti.pms.core.Patient;
 import de.hsrt.meti.pms.core.Repository;
+import de.hsrt.meti.pms.gens.FilterFixtures;
 import de.hsrt.meti.pms.gens.Generators;
 
 
@@ -49,5 +69,360 @@ public final class Tests
   }
 
 
+  @Test
+  public void testConcurrentSaves(){
+
+    var repo = new InMemRepository();
+
+    Set<Object> ids = ConcurrentHashMap.newKeySet();
+
+    IntStream.range(0,10_000)
+      .parallel()
+      .forEach(
+        i -> {
+          var id = repo.patientId();
+          ids.add(id);
+
+          var patient = Generators.patient();
+          try {
+            repo.save(
+              new Patient(
+                id,
+                patient.gender(),
+                patient.givenName(),
+                patient.familyName(),
+                patient.birthDate(),
+                patient.dateOfDeath(),
+                patient.healthInsurance(),
+                patient.address(),
+                patient.lastUpdate()
+              )
+            );
+          } catch (Exception e){
+            throw new RuntimeException(e);
+          }
+        }
+      );
+
+    assertEquals(10_000, ids.size());
+    assertEquals(10_000, repo.findPatients(Patient.Filter.NONE).size());
+  }
+
+
+  // Save the same Patients to both Repositories, delete some of them again, and compare query results
+  private static void assertSameResults(Repository expected, Repository actual) throws Exception {
+
+    var patients =
+      Stream.generate(Generators::patient)
+        // lastUpdate with millisecond precision, as stored by some implementations
+        .map(p -> new Patient(p.id(),p.gender(),p.givenName(),p.familyName(),p.birthDate(),p.dateOfDeath(),p.healthInsurance(),p.address(),Instant.ofEpochMilli(p.lastUpdate().toEpochMilli())))
+        .limit(5_000)
+        .toList();
+
+    for (var patient : patients){
+      expected.save(patient);
+      actual.save(patient);
+    }
+
+    for (var patient : patients.subList(0,500)){
+      assertEquals(Optional.of(patient),expected.deletePatient(patient.id()));
+      assertEquals(Optional.of(patient),actual.deletePatient(patient.id()));
+    }
+
+    var remaining = patients.subList(500,patients.size());
+
+    // Both find the Patients matching according to Patient.Filter.matches(...)
+    for (var filter : FilterFixtures.FILTERS){
+      var matching = remaining.stream().filter(filter::matches).collect(toSet());
+      assertEquals(matching, new HashSet<>(expected.findPatients(filter)));
+      assertEquals(matching, new HashSet<>(actual.findPatients(filter)));
+    }
+  }
+
+
+  @Test
+  public void testIndexedQueries() throws Exception {
+    assertSameResults(new InMemRepository(false), new InMemRepository(true));
+  }
+
+
+  @Test
+  public void testColumnarQueries() throws Exception {
+    assertSameResults(new InMemRepository(false), new ColumnarRepository());
+  }
+
+
+  @Test
+  public void testColumnarInsuranceLimit() throws Exception {
+
+    var repo = new ColumnarRepository();
+
+    Patient patient = null;
+    for (int i = 0; i < 256; i++){
+      patient = withInsurance(Generators.patient(),"Insurance " + i);
+      repo.save(patient);
+    }
+
+    // A 257th distinct health insurance is rejected, without affecting later saves
+    var rejected = withInsurance(Generators.patient(),"Insurance 256");
+    assertThrows(IllegalStateException.class, () -> repo.save(rejected));
+
+    var accepted = withInsurance(Generators.patient(),patient.healthInsurance());
+    repo.save(accepted);
+
+    assertEquals(Optional.of(accepted), repo.findPatient(accepted.id()));
+    assertEquals(257, repo.findPatients(Patient.Filter.NONE).size());
+  }
+
+  private static Patient withInsurance(Patient p, String insurance){
+    return new Patient(p.id(),p.gender(),p.givenName(),p.familyName(),p.birthDate(),p.dateOfDeath(),insurance,p.address(),Instant.ofEpochMilli(p.lastUpdate().toEpochMilli()));
+  }
+
+
+  @Test
+  public void testMappedRestart() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-mapped");
+
+    var repo = new MappedRepository(dir,64 * 1024);
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(2_000)
+        .toList();
+
+    for (var patient : patients) repo.save(patient);
+    for (var patient : patients.subList(0,1_000)) repo.deletePatient(patient.id());
+
+    var expected = new HashSet<>(repo.findPatients(Patient.Filter.NONE));
+    assertEquals(1_000, expected.size());
+
+    // Re-open from the files
+    assertEquals(expected, new HashSet<>(new MappedRepository(dir,64 * 1024).findPatients(Patient.Filter.NONE)));
+
+    // Compact, then re-open again
+    repo.compact();
+    assertEquals(expected, new HashSet<>(new MappedRepository(dir,64 * 1024).findPatients(Patient.Filter.NONE)));
+  }
+
+
+  // A failed compaction doesn't fail the write that triggered it, and leaves the current generation intact
+  @Test
+  public void testMappedCompactionFailure() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-mapped");
+
+    var repo = new MappedRepository(dir,64 * 1024);
+
+    // A non-empty directory in place of the first segment of the next generation
+    var blocker = Files.createDirectories(dir.resolve("patients-1-00000.seg"));
+    Files.createFile(blocker.resolve("file"));
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(2_000)
+        .toList();
+
+    for (var patient : patients) repo.save(patient);
+    for (var patient : patients.subList(0,1_000)) repo.deletePatient(patient.id());
+
+    var expected = Set.copyOf(patients.subList(1_000,2_000));
+    assertEquals(expected, new HashSet<>(repo.findPatients(Patient.Filter.NONE)));
+
+    Files.delete(blocker.resolve("file"));
+    Files.delete(blocker);
+
+    assertEquals(expected, new HashSet<>(new MappedRepository(dir,64 * 1024).findPatients(Patient.Filter.NONE)));
+
+    repo.compact();
+    assertEquals(expected, new HashSet<>(new MappedRepository(dir,64 * 1024).findPatients(Patient.Filter.NONE)));
+  }
+
+
+  // A segment file created right before a crash, without header yet, is recovered as empty segment
+  @Test
+  public void testMappedSegmentWithoutHeader() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-mapped");
+
+    var repo = new MappedRepository(dir,64 * 1024);
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(10)
+        .toList();
+
+    for (var patient : patients) repo.save(patient);
+
+    try (var channel = FileChannel.open(dir.resolve("patients-0-00001.seg"),StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE)){
+      channel.write(ByteBuffer.allocate(64 * 1024));
+    }
+
+    var reopened = new MappedRepository(dir,64 * 1024);
+    assertEquals(Set.copyOf(patients),new HashSet<>(reopened.findPatients(Patient.Filter.NONE)));
+
+    var patient = Generators.patient();
+    reopened.save(patient);
+    assertEquals(Optional.of(patient),new MappedRepository(dir,64 * 1024).findPatient(patient.id()));
+  }
+
+
+  @Test
+  public void testWriteAheadLogRestart() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-wal");
+
+    var config = new WriteAheadLog.Config(dir,WriteAheadLog.Fsync.parse("interval:10"),1_500);
+
+    var repo = new InMemRepository(true,Optional.of(config));
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(2_000)
+        .toList();
+
+    for (var patient : patients) repo.save(patient);
+    for (var patient : patients.subList(0,1_000)) assertTrue(repo.deletePatient(patient.id()).isPresent());
+
+    var expected = new HashSet<>(repo.findPatients(Patient.Filter.NONE));
+    assertEquals(1_000, expected.size());
+    repo.close();
+
+    // Once the log is closed, saves fail and leave the content unchanged
+    var rejected = Generators.patient();
+    assertThrows(IOException.class, () -> repo.save(rejected));
+    assertTrue(repo.findPatient(rejected.id()).isEmpty());
+    assertThrows(IllegalArgumentException.class, () -> WriteAheadLog.Fsync.parse("interval:0"));
+
+    // Recover from snapshot (taken after 1,500 records) and log
+    var recovered = new InMemRepository(true,Optional.of(config));
+    assertEquals(expected, new HashSet<>(recovered.findPatients(Patient.Filter.NONE)));
+
+    // Snapshot explicitly, then recover from the snapshot only
+    recovered.snapshot();
+    recovered.close();
+    assertEquals(expected, new HashSet<>(new InMemRepository(false,Optional.of(config)).findPatients(Patient.Filter.NONE)));
+  }
+
+
+  @Test
+  public void testWriteAheadLogCorruptRecord() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-wal");
+
+    var config = new WriteAheadLog.Config(dir,WriteAheadLog.Fsync.parse("always"),1_000_000);
+
+    var repo = new InMemRepository(false,Optional.of(config));
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(100)
+        .toList();
+
+    for (var patient : patients) repo.save(patient);
+    repo.close();
+
+    // Split the log into two files after record 50 (as left by a rotation without snapshot),
+    // and corrupt record 20 in the first one
+    var log = dir.resolve(String.format("wal-%020d.log",1));
+    var bytes = Files.readAllBytes(log);
+    var buf = ByteBuffer.wrap(bytes);
+
+    var offsets = new ArrayList<Integer>();
+    for (int pos = 0; pos < bytes.length; pos += 4 + buf.getInt(pos)) offsets.add(pos);
+    assertEquals(100,offsets.size());
+
+    var later = dir.resolve(String.format("wal-%020d.log",51));
+    Files.write(later,Arrays.copyOfRange(bytes,offsets.get(50),bytes.length));
+    bytes[offsets.get(20) + 20] ^= 1;
+    Files.write(log,Arrays.copyOf(bytes,offsets.get(50)));
+
+    // Recovery ends before the corrupt record, and sets the later file aside
+    var recovered = new InMemRepository(false,Optional.of(config));
+    assertEquals(
+      Set.copyOf(patients.subList(0,20)),
+      new HashSet<>(recovered.findPatients(Patient.Filter.NONE))
+    );
+    assertEquals(offsets.get(20).longValue(),Files.size(log));
+    assertTrue(Files.notExists(later) && Files.exists(dir.resolve(later.getFileName() + ".discarded")));
+
+    // Appends continue after the valid records
+    var patient = Generators.patient();
+    recovered.save(patient);
+    recovered.close();
+    assertTrue(new InMemRepository(false,Optional.of(config)).findPatient(patient.id()).isPresent());
+  }
+
+
+  @Test
+  public void testSaveAll(){
+
+    var repo = new InMemRepository();
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(1_234)
+        .toList();
+
+    var failures = repo.saveAll(patients);
+
+    assertTrue(failures.isEmpty());
+    assertTrue(
+      patients.stream()
+        .allMatch(p -> repo.findPatient(p.id()).isPresent())
+    );
+  }
+
+
+  @Test
+  public void testStreamPatients() throws Exception {
+
+    var repo = new InMemRepository(true);
+
+    for (var patient : Stream.generate(Generators::patient).limit(2_000).toList()) repo.save(patient);
+
+    for (var filter : FilterFixtures.FILTERS){
+      try (var patients = repo.streamPatients(filter)){
+        assertEquals(
+          new HashSet<>(repo.findPatients(filter)),
+          patients.collect(toSet())
+        );
+      }
+    }
+  }
+
+
+  @Test
+  public void testKeysetPagination() throws Exception {
+
+    for (var repo : List.of(new InMemRepository(false), new InMemRepository(true))){
+
+      for (var patient : Stream.generate(Generators::patient).limit(1_000).toList()) repo.save(patient);
+
+      for (var sortKey : Patient.PageRequest.SortKey.values()){
+        for (var filter : FilterFixtures.FILTERS){
+
+          var expected =
+            repo.findPatients(filter)
+              .stream()
+              .sorted(sortKey.order())
+              .toList();
+
+          // Page through all results
+          var actual = new ArrayList<Patient>();
+          var request = Patient.PageRequest.first(sortKey,37);
+          Patient.Page page;
+          do {
+            page = repo.findPatients(filter,request);
+            assertTrue(page.patients().size() <= 37);
+            actual.addAll(page.patients());
+            request = request.next(page);
+          } while (page.next().isPresent());
+
+          assertEquals(expected, actual);
+        }
+      }
+    }
+  }
 
 }
@@ -0,0 +1,203 @@
+package de.hsrt.meti.pms.repo.jdbc;
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+  Minimal pool of JDBC Connections, so that concurrent callers don't serialize on one Connection:
+
+  - At most 'size' Connections, opened lazily; callers wait up to 'timeout' ms for one to become free.
+  - A Connection idle for longer than 'validationInterval' ms is checked with Connection.isValid(...)
+    before being handed out, and replaced if it's broken (e.g. after a DB restart).
+  - A Connection on which an SQLException of class "08" (connection exception) occurred is discarded.
+  - Each Connection keeps a cache of its PreparedStatements by SQL string, so that statements are
+    only prepared once per Connection, and the DB driver can re-use their execution plans.
+*/
+final class ConnectionPool
+{
+
+  @FunctionalInterface
+  static interface Work<T>
+  {
+    T apply(Session session) throws SQLException;
+  }
+
+
+  // A borrowed Connection, with its PreparedStatement cache
+  static final class Session
+  {
+    private static final int MAX_STATEMENTS = 64;
+
+    private final Connection conn;
+    private final Map<String,PreparedStatement> statements;
+    private long lastUsed = System.currentTimeMillis();
+
+    private Session(Connection conn){
+      this.conn = conn;
+      // LRU order, closing the least recently used statement when full
+      this.statements =
+        new LinkedHashMap<>(16,0.75f,true){
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest){
+            if (size() <= MAX_STATEMENTS) return false;
+            try {
+              eldest.getValue().close();
+            } catch (SQLException e){
+              // irrelevant, the statement is dropped anyway
+            }
+            return true;
+          }
+        };
+    }
+
+    Connection connection(){
+      return conn;
+    }
+
+    // Cached PreparedStatement for the SQL string, with parameters (and a left-over batch) cleared
+    PreparedStatement prepare(String sql) throws SQLException {
+      var stmt = statements.get(sql);
+      if (stmt == null || stmt.isClosed()){
+        stmt = conn.prepareStatement(sql);
+        statements.put(sql,stmt);
+      } else {
+        stmt.clearParameters();
+        stmt.clearBatch();
+      }
+      return stmt;
+    }
+
+    private void close(){
+      try {
+        conn.close();
+      } catch (SQLException e){
+        // irrelevant, the connection is dropped anyway
+      }
+    }
+  }
+
+
+  private static final int VALIDATION_TIMEOUT = 5; // seconds
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final long timeout;
+  private final long validationInterval;
+
+  private final Semaphore permits;
+  private final BlockingQueue<Session> idle = new LinkedBlockingQueue<>();
+
+
+  ConnectionPool(
+    String url,
+    String user,
+    String password,
+    int size,
+    long timeout,
+    long validationInterval
+  ){
+    this.url                = url;
+    this.user               = user;
+    this.password           = password;
+    this.timeout            = timeout;
+    this.validationInterval = validationInterval;
+    this.permits            = new Semaphore(size,true);
+  }
+
+
+  static ConnectionPool fromSystemProperties(){
+    return new ConnectionPool(
+      System.getProperty("pms.repo.jdbc.url"),
+      System.getProperty("pms.repo.jdbc.user"),
+      System.getProperty("pms.repo.jdbc.password"),
+      Integer.getInteger("pms.repo.jdbc.pool.size",10),
+      Long.getLong("pms.repo.jdbc.pool.timeout",30_000L),
+      Long.getLong("pms.repo.jdbc.pool.validationInterval",5_000L)
+    );
+  }
+
+
+  // Run the work with a pooled Connection, which is returned to the pool afterwards
+  <T> T withConnection(Work<T> work) throws SQLException {
+
+    var session = borrow();
+    var broken = false;
+
+    try {
+      return work.apply(session);
+
+    } catch (SQLException e){
+      broken = e.getSQLState() != null && e.getSQLState().startsWith("08");
+      throw e;
+
+    } finally {
+      release(session,broken);
+    }
+  }
+
+
+  private Properties properties(){
+    var props = new Properties();
+    if (user != null) props.setProperty("user",user);
+    if (password != null) props.setProperty("password",password);
+    // Let the PostgreSQL driver rewrite batched INSERTs into multi-row INSERTs (ignored by other drivers)
+    props.setProperty("reWriteBatchedInserts","true");
+    return props;
+  }
+
+
+  // Take a Connection out of the pool, for use beyond a single call (e.g. a streamed query);
+  // it must be given back by release(...)
+  Session borrow() throws SQLException {
+    try {
+      if (!permits.tryAcquire(timeout,TimeUnit.MILLISECONDS)){
+        throw new SQLException("No connection available within " + timeout + " ms","08001");
+      }
+    } catch (InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection",e);
+    }
+
+    try {
+      for (var session = idle.poll(); session != null; session = idle.poll()){
+        if (System.currentTimeMillis() - session.lastUsed < validationInterval) return session;
+        if (session.conn.isValid(VALIDATION_TIMEOUT)) return session;
+        session.close();
+      }
+      return new Session(DriverManager.getConnection(url,properties()));
+
+    } catch (SQLException | RuntimeException e){
+      permits.release();
+      throw e;
+    }
+  }
+
+
+  void release(Session session, boolean broken){
+    if (broken){
+      session.close();
+    } else {
+      session.lastUsed = System.currentTimeMillis();
+      idle.add(session);
+    }
+    permits.release();
+  }
+
+
+  void close(){
+    for (var session = idle.poll(); session != null; session = idle.poll()) session.close();
+  }
+
+}
@@ -1,20 +1,24 @@
 package de.hsrt.meti.pms.repo.jdbc;
 
 
-import java.sql.Connection;
 import java.sql.Date;
 import java.sql.Timestamp;
-import java.sql.DriverManager;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.time.LocalDate;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.joining;
 import static java.util.Map.entry;
 import java.util.ArrayList;
 import java.util.Optional;
@@ -44,24 +48,30 @@ class JDBCRepository implements Repository
   }
 
 
-  private final Connection conn;
+  private final ConnectionPool pool;
 
-  private JDBCRepository(Connection conn){ 
-    this.conn = conn;
+  // SQL dialect: PostgreSQL, or else the SQL standard
+  private final boolean postgres;
+
+  // Dialect-specific upsert statement, see upsertSQL(...)
+  private final String upsertSQL;
+
+  private JDBCRepository(ConnectionPool pool, String databaseProduct){ 
+    this.pool = pool;
+    this.postgres = databaseProduct.equalsIgnoreCase("PostgreSQL");
+    this.upsertSQL = upsertSQL(postgres);
   }
 
 
   // Factory method
   static JDBCRepository instance(){
     try {
-      var conn =
-        DriverManager.getConnection(
-          System.getProperty("pms.repo.jdbc.url"),
-          System.getProperty("pms.repo.jdbc.user"),
-          System.getProperty("pms.repo.jdbc.password")
-        );
+      var pool = ConnectionPool.fromSystemProperties();
+
+      var product =
+        pool.withConnection(session -> session.connection().getMetaData().getDatabaseProductName());
 
-      var repo = new JDBCRepository(conn);
+      var repo = new JDBCRepository(pool,product);
       repo.setup();
       return repo;
 
@@ -71,51 +81,36 @@ class JDBCRepository implements Repository
   }
   
 
-  private static final String CREATE_PATIENT_TABLE = """
-    CREATE TABLE IF NOT EXISTS patients(
-      id VARCHAR(50) PRIMARY KEY,
-      gender VARCHAR(10) NOT NULL,
-      givenName VARCHAR(100) NOT NULL,
-      familyName VARCHAR(100) NOT NULL,
-      birthDate DATE NOT NULL,
-      dateOfDeath DATE,
-      healthInsurance VARCHAR(40) NOT NULL,
-      street VARCHAR(50) NOT NULL,
-      house VARCHAR(50) NOT NULL,
-      postalCode VARCHAR(50) NOT NULL,
-      city VARCHAR(50) NOT NULL,
-      lastUpdate TIMESTAMP NOT NULL
-    );
-  """;
-
-
   // Set up DB tables etc.
   void setup(){
-    try (var stmt = conn.createStatement()){
-
-      stmt.execute(CREATE_PATIENT_TABLE); 
-
+    try {
+      Schema.migrate(pool,postgres);
     } catch (SQLException e){
       throw new RuntimeException(e);
     }
   }
 
 
-  private static String quoted(String s){
-    return String.format("'%s'",s);
-  }
+  // Bind a value to a statement parameter, according to its type
+  private static void bind(PreparedStatement stmt, int index, Object obj) throws SQLException {
 
-  private static String sqlValue(Object obj){
+    switch(obj){
+      case null           -> stmt.setNull(index,Types.DATE); // only dateOfDeath is nullable
+      case LocalDate date -> stmt.setDate(index,Date.valueOf(date));
+      case Instant t      -> stmt.setTimestamp(index,Timestamp.from(t));
+      case Integer n      -> stmt.setInt(index,n);
+      case Long n         -> stmt.setLong(index,n);
+      case Double n       -> stmt.setDouble(index,n);
+      default             -> stmt.setString(index,obj.toString());
+    }
 
-    return switch(obj){
-      case LocalDate date -> quoted(Date.valueOf(date).toString());
-      case Instant t      -> quoted(Timestamp.from(t).toString());
-      case Integer n      -> Integer.toString(n);
-      case Long n         -> Long.toString(n);
-      case Double n       -> Double.toString(n);
-      default             -> quoted(obj.toString());
-    };
+  }
 
+  private static PreparedStatement bound(PreparedStatement stmt, List<?> params) throws SQLException {
+    for (int i = 0; i < params.size(); i++){
+      bind(stmt,i + 1,params.get(i));
+    }
+    return stmt;
   }
 
 
@@ -139,43 +134,66 @@ class JDBCRepository implements Repository
   }
 
 
-  private static String insertSQL(Patient patient){
+  // Columns in the order of params(Patient)
+  private static final List<String> COLUMNS =
+    List.of(
+      "gender","givenName","familyName","birthDate","dateOfDeath","healthInsurance",
+      "street","house","postalCode","city","lastUpdate","id"
+    );
+
+  private static final String COLUMN_LIST = String.join(",",COLUMNS);
+
+  private static final String PARAMETERS = COLUMNS.stream().map(c -> "?").collect(joining(","));
+
+  private static String updates(String source){
     return
-      "INSERT INTO patients(" + 
-        "id,gender,givenName,familyName,birthDate," +
-        patient.dateOfDeath().map(d -> "dateOfDeath,").orElse("") +
-        "healthInsurance,street,house,postalCode,city,lastUpdate" + 
-      ") VALUES (" + 
-        sqlValue(patient.id().value()) + "," +
-        sqlValue(patient.gender()) + "," +
-        sqlValue(patient.givenName()) + "," +
-        sqlValue(patient.familyName()) + "," +
-        sqlValue(patient.birthDate()) + "," +
-        patient.dateOfDeath().map(d -> sqlValue(d) + ",").orElse("") +
-        sqlValue(patient.healthInsurance()) + "," +
-        sqlValue(patient.address().street()) + "," +
-        sqlValue(patient.address().house()) + "," +
-        sqlValue(patient.address().postalCode()) + "," +
-        sqlValue(patient.address().city()) + "," +
-        sqlValue(patient.lastUpdate()) +
-      ");";
+      COLUMNS.stream()
+        .filter(c -> !c.equals("id"))
+        .map(c -> c + " = " + source + "." + c)
+        .collect(joining(", "));
   }
 
-  private static String updateSQL(Patient patient){
+
+  // Insert or update in one statement (and round trip):
+  // PostgreSQL's INSERT ... ON CONFLICT, otherwise the SQL standard MERGE
+  private static String upsertSQL(boolean postgres){
     return
-      "UPDATE patients SET " +
-        "gender = " + sqlValue(patient.gender()) + "," +
-        "givenName = " + sqlValue(patient.givenName()) + "," +
-        "familyName = " + sqlValue(patient.familyName()) + "," +
-        "birthDate = " + sqlValue(patient.birthDate()) + "," +
-        patient.dateOfDeath().map(d -> "dateOfDeath = " + sqlValue(d) + " ,").orElse("") +
-        "healthInsurance = " + sqlValue(patient.healthInsurance()) + "," +
-        "street = " + sqlValue(patient.address().street()) + "," +
-        "house = " + sqlValue(patient.address().house()) + "," +
-        "postalCode = " + sqlValue(patient.address().postalCode()) + "," +
-        "city = " + sqlValue(patient.address().city()) + "," +
-        "lastUpdate = " + sqlValue(patient.lastUpdate()) + " " +
-      "WHERE id = " + sqlValue(patient.id().value()) + ";";
+      postgres ?
+        "INSERT INTO patients(" + COLUMN_LIST + ") VALUES (" + PARAMETERS + ") " +
+        "ON CONFLICT (id) DO UPDATE SET " + updates("EXCLUDED") + ";" :
+
+        "MERGE INTO patients p " +
+        "USING (VALUES (" + PARAMETERS + ")) AS v(" + COLUMN_LIST + ") " +
+        "ON p.id = v.id " +
+        "WHEN MATCHED THEN UPDATE SET " + updates("v") + " " +
+        "WHEN NOT MATCHED THEN INSERT (" + COLUMN_LIST + ") VALUES (" + COLUMNS.stream().map(c -> "v." + c).collect(joining(",")) + ");";
+  }
+
+  private static final String SELECT_SQL = "SELECT * FROM patients WHERE id = ?;";
+
+  private static final String SELECT_FOR_UPDATE_SQL = "SELECT * FROM patients WHERE id = ? FOR UPDATE;";
+
+  private static final String DELETE_SQL = "DELETE FROM patients WHERE id = ?;";
+
+  private static final String DELETE_RETURNING_SQL = "DELETE FROM patients WHERE id = ? RETURNING *;";
+
+
+  // Parameter values in the order of COLUMNS
+  private static List<Object> params(Patient patient){
+    return Arrays.asList(
+      patient.gender(),
+      patient.givenName(),
+      patient.familyName(),
+      patient.birthDate(),
+      patient.dateOfDeath().orElse(null),
+      patient.healthInsurance(),
+      patient.address().street(),
+      patient.address().house(),
+      patient.address().postalCode(),
+      patient.address().city(),
+      patient.lastUpdate(),
+      patient.id().value()
+    );
   }
 
 
@@ -183,43 +201,71 @@ class JDBCRepository implements Repository
   @Override
   public Id<Patient> patientId(){
 
-    var id = new Id<Patient>(randomUUID().toString());
-
-    return findPatient(id).isEmpty() ? id : patientId();
+    // Random UUIDs don't collide in practice, so no need to check the table
+    return new Id<Patient>(randomUUID().toString());
   }
 
 
   @Override
   public void save(Patient patient) throws SQLException {
 
-    try (
-      var stmt = conn.createStatement()
-    ){
-      var sql =
-        findPatient(patient.id()).isPresent() ?
-          updateSQL(patient) :
-          insertSQL(patient);
+    var params = params(patient);
 
-      stmt.executeUpdate(sql);
-
-    } catch (SQLException e){
-      throw new RuntimeException(e);
-    }
+    pool.withConnection(session -> bound(session.prepare(upsertSQL),params).executeUpdate());
 
   }
 
 
+  // One round trip and transaction per batch
   @Override
-  public Optional<Patient> findPatient(Id<Patient> id){
+  public void saveBatch(List<Patient> patients) throws SQLException {
+
+    pool.withConnection(
+      session -> {
+        var conn = session.connection();
+        conn.setAutoCommit(false);
+        try {
+          var stmt = session.prepare(upsertSQL);
+          for (var patient : patients){
+            bound(stmt,params(patient)).addBatch();
+          }
+          stmt.executeBatch();
+          conn.commit();
+          return null;
+
+        } catch (SQLException e){
+          conn.rollback();
+          throw e;
+
+        } finally {
+          conn.setAutoCommit(true);
+        }
+      }
+    );
+  }
+
+
+  private static Optional<Patient> findPatient(ConnectionPool.Session session, Id<Patient> id) throws SQLException {
+    return queryPatient(session,SELECT_SQL,id);
+  }
+
+  // Run a query (or DELETE ... RETURNING) by ID, returning the Patient of the resulting row, if any
+  private static Optional<Patient> queryPatient(ConnectionPool.Session session, String sql, Id<Patient> id) throws SQLException {
     try (
-      var result =
-        conn.createStatement()
-          .executeQuery("SELECT * FROM patients WHERE id = " + sqlValue(id.value()) + ";")
+      var result = bound(session.prepare(sql),List.of(id.value())).executeQuery()
     ){
       return
         result.next() ?
           Optional.of(readPatientFromRow(result)) :
           Optional.empty();
+    }
+  }
+
+
+  @Override
+  public Optional<Patient> findPatient(Id<Patient> id){
+    try {
+      return pool.withConnection(session -> findPatient(session,id));
 
     } catch (SQLException e){
       throw new RuntimeException(e);
@@ -228,64 +274,272 @@ class JDBCRepository implements Repository
 
 
 
-  private static Optional<String> whereClause(Patient.Filter filter){
+  // SQL condition with its parameter values; the SQL string only depends on the "shape" of the Filter,
+  // i.e. which criteria are set (and how many genders), so the PreparedStatement cache has one entry per shape
+  private static record Where(String sql, List<Object> params)
+  {
+    static final Where NONE = new Where("",List.of());
+
+    Where and(String condition, List<?> values){
+      var all = new ArrayList<Object>(params);
+      all.addAll(values);
+      return new Where((sql.isEmpty() ? "WHERE " : sql + " AND ") + condition,all);
+    }
+  }
+
+
+  // LIKE pattern for a substring match of the value, i.e. with wildcard characters in it escaped
+  private static String containing(String value){
+    return "%" + value.replace("\\","\\\\").replace("%","\\%").replace("_","\\_") + "%";
+  }
+
+
+  private Where whereClause(Patient.Filter filter){
+
+    var conditions = new ArrayList<String>();
+    var params = new ArrayList<Object>();
+
+    filter.gender().ifPresent(
+      set -> {
+        conditions.add(
+          set.isEmpty() ?
+            "1 = 0" :
+            "gender IN (" + set.stream().map(g -> "?").collect(joining(",")) + ")"
+        );
+        params.addAll(set);
+      }
+    );
+    filter.familyName().ifPresent(
+      n -> {
+        conditions.add("familyName LIKE ? ESCAPE '\\'");
+        params.add(containing(n));
+      }
+    );
+    filter.birthDatePeriod().map(Period::start).ifPresent(
+      d -> {
+        conditions.add("birthDate >= ?");
+        params.add(d);
+      }
+    );
+    filter.birthDatePeriod().flatMap(Period::end).ifPresent(
+      d -> {
+        conditions.add("birthDate <= ?");
+        params.add(d);
+      }
+    );
+    filter.address().flatMap(Address.Filter::street).ifPresent(
+      st -> {
+        conditions.add("street LIKE ? ESCAPE '\\'");
+        params.add(containing(st));
+      }
+    );
+    filter.address().flatMap(Address.Filter::city).ifPresent(
+      c -> {
+        conditions.add("city LIKE ? ESCAPE '\\'");
+        params.add(containing(c));
+      }
+    );
 
     return
-      Stream.of(
-        filter.gender().map(set -> "gender IN (" + set.stream().map(g -> sqlValue(g)).reduce((s,t) -> s + "," + t).orElse(",") + ")").orElse(""),
-        filter.familyName().map(n -> "familyName LIKE " + sqlValue(n)).orElse(""),
-        filter.birthDatePeriod().map(Period::start).map(d -> "birthDate >= " + sqlValue(d)).orElse(""),
-        filter.birthDatePeriod().flatMap(Period::end).map(d -> "birthDate <= " + sqlValue(d)).orElse("")
-        //TODO: address criteria
-      )
-      .filter(s -> !s.isEmpty())
-      .reduce((s,t) -> s + " AND " + t)
-      .map(c -> "WHERE " + c); 
+      conditions.isEmpty() ?
+        Where.NONE :
+        new Where("WHERE " + String.join(" AND ",conditions),params);
   }
 
 
   @Override
   public List<Patient> findPatients(Patient.Filter filter){
 
-    var sql = "SELECT * FROM patients " + whereClause(filter).orElse("") + ";";
+    var where = whereClause(filter);
 
-    try (
-      var resultSet =
-        conn.createStatement().executeQuery(sql)
-    ){
+    var sql = "SELECT * FROM patients " + where.sql() + ";";
 
-      var patients = new ArrayList<Patient>();
+    try {
+      return pool.withConnection(
+        session -> {
+          try (
+            var resultSet = bound(session.prepare(sql),where.params()).executeQuery()
+          ){
+            var patients = new ArrayList<Patient>();
+
+            while(resultSet.next()){
+              patients.add(readPatientFromRow(resultSet));
+            }
+
+            return patients;
+          }
+        }
+      );
 
-      while(resultSet.next()){
-        patients.add(readPatientFromRow(resultSet));
-      }
+    } catch (SQLException e){
+      throw new RuntimeException(e);
+    }
+      
+  }
 
-      return patients;
+
+  /*
+    Keyset pagination: ORDER BY the sort key and id, LIMIT to the page size (+ 1, to tell if there's a next page),
+    and continue after the cursor position by a "seek" condition on (sort key, id) instead of an OFFSET,
+    so that with an index on (sort key, id) the DB reads just the page, however deep it is.
+  */
+  @Override
+  public Patient.Page findPatients(Patient.Filter filter, Patient.PageRequest page){
+
+    var column =
+      switch(page.sortKey()){
+        case FAMILY_NAME -> "familyName";
+        case BIRTH_DATE  -> "birthDate";
+      };
+
+    var where =
+      page.after()
+        .map(
+          pos ->
+            // Row value comparison is what PostgreSQL turns into an index range scan
+            postgres ?
+              whereClause(filter).and("(" + column + ",id) > (?,?)",List.of(pos.value(),pos.id().value())) :
+              whereClause(filter).and("(" + column + " > ? OR (" + column + " = ? AND id > ?))",List.of(pos.value(),pos.value(),pos.id().value()))
+        )
+        .orElseGet(() -> whereClause(filter));
+
+    var sql =
+      "SELECT * FROM patients " + where.sql() +
+      " ORDER BY " + column + ",id " +
+      (postgres ? "LIMIT ?" : "FETCH FIRST ? ROWS ONLY") + ";";
+
+    var params = new ArrayList<Object>(where.params());
+    params.add(page.limit() + 1);
+
+    try {
+      return pool.withConnection(
+        session -> {
+          try (
+            var resultSet = bound(session.prepare(sql),params).executeQuery()
+          ){
+            var patients = new ArrayList<Patient>();
+
+            while(resultSet.next()){
+              patients.add(readPatientFromRow(resultSet));
+            }
+
+            return page.toPage(patients);
+          }
+        }
+      );
+
+    } catch (SQLException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  // Rows fetched per round trip by streamPatients(...)
+  private static final int FETCH_SIZE = Integer.getInteger("pms.repo.jdbc.fetchSize",1_000);
+
+
+  @Override
+  public Stream<Patient> streamPatients(Patient.Filter filter){
+
+    var where = whereClause(filter);
+
+    var sql = "SELECT * FROM patients " + where.sql() + ";";
+
+    try {
+      var session = pool.borrow();
+      var conn = session.connection();
+
+      try {
+        // PostgreSQL only fetches rows in chunks of the fetch size (via a cursor) within a transaction,
+        // otherwise it reads the whole result at once
+        conn.setAutoCommit(false);
+
+        // Not a cached statement, as it stays open as long as the Stream
+        var stmt = conn.prepareStatement(sql,ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(FETCH_SIZE);
+        var resultSet = bound(stmt,where.params()).executeQuery();
+
+        var rows =
+          new Spliterators.AbstractSpliterator<Patient>(Long.MAX_VALUE,Spliterator.ORDERED | Spliterator.NONNULL){
+            @Override
+            public boolean tryAdvance(Consumer<? super Patient> action){
+              try {
+                if (!resultSet.next()) return false;
+                action.accept(readPatientFromRow(resultSet));
+                return true;
+              } catch (SQLException e){
+                throw new RuntimeException(e);
+              }
+            }
+          };
+
+        return
+          StreamSupport.stream(rows,false)
+            .onClose(
+              () -> {
+                var broken = false;
+                try {
+                  stmt.close(); // also closes the ResultSet
+                  conn.commit();
+                  conn.setAutoCommit(true);
+                } catch (SQLException e){
+                  broken = true;
+                } finally {
+                  pool.release(session,broken);
+                }
+              }
+            );
+
+      } catch (SQLException | RuntimeException e){
+        try {
+          conn.rollback();
+          conn.setAutoCommit(true);
+          pool.release(session,false);
+        } catch (SQLException e2){
+          pool.release(session,true);
+        }
+        throw e;
+      }
 
     } catch (SQLException e){
       throw new RuntimeException(e);
     }
-      
   }
 
 
   @Override
   public Optional<Patient> deletePatient(Id<Patient> id) throws SQLException {
 
-    var patient = findPatient(id);
+    // PostgreSQL deletes and returns the row in one statement: of concurrent deletes, only one gets it
+    if (postgres){
+      return pool.withConnection(session -> queryPatient(session,DELETE_RETURNING_SQL,id));
+    }
 
-    patient.ifPresent(
-      p -> {
+    // Otherwise, read and delete in one transaction, locking the row on reading it:
+    // a concurrent delete waits for the lock, and then doesn't find the row anymore
+    return pool.withConnection(
+      session -> {
+        var conn = session.connection();
+        conn.setAutoCommit(false);
         try {
-          conn.createStatement()
-           .executeUpdate("DELETE FROM patients WHERE id = " + quoted(id.value()) + ";");
+          var patient = queryPatient(session,SELECT_FOR_UPDATE_SQL,id);
+
+          if (patient.isPresent()){
+            bound(session.prepare(DELETE_SQL),List.of(id.value())).executeUpdate();
+          }
+
+          conn.commit();
+          return patient;
+
         } catch (SQLException e){
-          throw new RuntimeException(e);
+          conn.rollback();
+          throw e;
+
+        } finally {
+          conn.setAutoCommit(true);
         }
       }
     );
-
-    return patient;
   }
 
 
@@ -0,0 +1,149 @@
+package de.hsrt.meti.pms.repo.jdbc;
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+
+/*
+  Versioned setup of the DB schema:
+
+  - The schema is built up by numbered Migrations, each applied at most once, in its own transaction.
+  - Applied versions are recorded in table schema_version, so a start-up only applies the Migrations
+    added since the previous one (instead of re-running all DDL every time).
+  - Dialect-specific Migrations (e.g. PostgreSQL trigram indexes) are recorded as applied on other DBs,
+    without doing anything there.
+
+  Migrations must never be changed once released: add a new one instead.
+*/
+final class Schema
+{
+
+  private Schema(){}
+
+
+  private static record Migration
+  (
+    int version,
+    String description,
+    boolean postgresOnly,
+    List<String> statements
+  ){}
+
+
+  private static final List<Migration> MIGRATIONS =
+    List.of(
+      new Migration(
+        1,"Patients table",false,
+        List.of(
+          """
+          CREATE TABLE IF NOT EXISTS patients(
+            id VARCHAR(50) PRIMARY KEY,
+            gender VARCHAR(10) NOT NULL,
+            givenName VARCHAR(100) NOT NULL,
+            familyName VARCHAR(100) NOT NULL,
+            birthDate DATE NOT NULL,
+            dateOfDeath DATE,
+            healthInsurance VARCHAR(40) NOT NULL,
+            street VARCHAR(50) NOT NULL,
+            house VARCHAR(50) NOT NULL,
+            postalCode VARCHAR(50) NOT NULL,
+            city VARCHAR(50) NOT NULL,
+            lastUpdate TIMESTAMP NOT NULL
+          )
+          """
+        )
+      ),
+      // B-tree indexes: (familyName,id) and (birthDate,id) for keyset pagination, and also for
+      // familyName equality and birthDate ranges (as leading column); (city,street) for address criteria
+      new Migration(
+        2,"Indexes for sorting and filter criteria",false,
+        List.of(
+          "CREATE INDEX IF NOT EXISTS patients_familyName_id ON patients(familyName,id)",
+          "CREATE INDEX IF NOT EXISTS patients_birthDate_id ON patients(birthDate,id)",
+          "CREATE INDEX IF NOT EXISTS patients_city_street ON patients(city,street)",
+          "CREATE INDEX IF NOT EXISTS patients_gender_birthDate ON patients(gender,birthDate)"
+        )
+      ),
+      // Trigram (GIN) indexes, which serve LIKE '%...%' as used for the familyName and address criteria
+      new Migration(
+        3,"Trigram indexes for substring search",true,
+        List.of(
+          "CREATE EXTENSION IF NOT EXISTS pg_trgm",
+          "CREATE INDEX IF NOT EXISTS patients_familyName_trgm ON patients USING GIN (familyName gin_trgm_ops)",
+          "CREATE INDEX IF NOT EXISTS patients_street_trgm ON patients USING GIN (street gin_trgm_ops)",
+          "CREATE INDEX IF NOT EXISTS patients_city_trgm ON patients USING GIN (city gin_trgm_ops)"
+        )
+      )
+    );
+
+
+  private static final String CREATE_VERSION_TABLE = """
+    CREATE TABLE IF NOT EXISTS schema_version(
+      version INT PRIMARY KEY,
+      description VARCHAR(100) NOT NULL,
+      applied TIMESTAMP NOT NULL
+    )
+  """;
+
+
+  static int latestVersion(){
+    return MIGRATIONS.get(MIGRATIONS.size() - 1).version();
+  }
+
+
+  // Apply pending Migrations, returning the resulting schema version
+  static int migrate(ConnectionPool pool, boolean postgres) throws SQLException {
+    return pool.withConnection(
+      session -> {
+        var conn = session.connection();
+
+        try (var stmt = conn.createStatement()){
+          stmt.execute(CREATE_VERSION_TABLE);
+        }
+
+        var version = 0;
+
+        conn.setAutoCommit(false);
+        try {
+          for (var migration : MIGRATIONS){
+            try (var stmt = conn.createStatement()){
+              // Serialize concurrent start-ups, which would otherwise apply the same Migration twice
+              if (postgres) stmt.execute("LOCK TABLE schema_version IN EXCLUSIVE MODE");
+
+              try (var rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")){
+                version = rs.next() ? rs.getInt(1) : 0;
+              }
+
+              if (migration.version() > version){
+                if (postgres || !migration.postgresOnly()){
+                  for (var sql : migration.statements()) stmt.execute(sql);
+                }
+                try (
+                  var insert = conn.prepareStatement("INSERT INTO schema_version(version,description,applied) VALUES (?,?,?)")
+                ){
+                  insert.setInt(1,migration.version());
+                  insert.setString(2,migration.description());
+                  insert.setTimestamp(3,Timestamp.from(Instant.now()));
+                  insert.executeUpdate();
+                }
+                version = migration.version();
+              }
+            }
+            conn.commit();
+          }
+        } catch (SQLException e){
+          conn.rollback();
+          throw e;
+        } finally {
+          conn.setAutoCommit(true);
+        }
+
+        return version;
+      }
+    );
+  }
+
+}
@@ -1,6 +1,7 @@
 package de.hsrt.meti.pms.repo.jdbc;
 
 
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -8,9 +9,13 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static java.util.stream.Collectors.toSet;
+import de.hsrt.meti.pms.core.Address;
 import de.hsrt.meti.pms.core.Gender;
 import de.hsrt.meti.pms.core.Patient;
 import de.hsrt.meti.pms.core.Repository;
+import de.hsrt.meti.pms.gens.FilterFixtures;
 import de.hsrt.meti.pms.gens.Generators;
 
 
@@ -104,4 +109,147 @@ public final class Tests
 
   }
 
+
+
+  @Test
+  public void testConcurrentSaves(){
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(1_000)
+        .toList();
+
+    // Concurrent clients, served by pooled connections
+    patients.parallelStream()
+      .forEach(
+        patient -> {
+          try {
+            repo.save(patient);
+          } catch (Exception e){
+            throw new RuntimeException(e);
+          }
+        }
+      );
+
+    assertTrue(
+      patients.parallelStream()
+        .allMatch(p -> repo.findPatient(p.id()).isPresent())
+    );
+  }
+
+
+  @Test
+  public void testSaveAll(){
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(1_234)
+        .toList();
+
+    var failures = repo.saveAll(patients);
+
+    assertTrue(failures.isEmpty());
+    assertTrue(
+      patients.stream()
+        .allMatch(p -> repo.findPatient(p.id()).isPresent())
+    );
+  }
+
+
+  @Test
+  public void testStreamPatients(){
+
+    try (var patients = repo.streamPatients(Patient.Filter.NONE)){
+      assertTrue(
+        patients.collect(toSet())
+          .equals(Set.copyOf(repo.findPatients(Patient.Filter.NONE)))
+      );
+    }
+  }
+
+
+  @Test
+  public void testKeysetPagination(){
+
+    // Page through all Patients: no Patient may be missed or repeated
+    var ids = new ArrayList<Object>();
+    var request = Patient.PageRequest.first(Patient.PageRequest.SortKey.FAMILY_NAME,25);
+    Patient.Page page;
+    do {
+      page = repo.findPatients(Patient.Filter.NONE,request);
+      page.patients().forEach(p -> ids.add(p.id()));
+      request = request.next(page);
+    } while (page.next().isPresent());
+
+    var all = repo.findPatients(Patient.Filter.NONE);
+
+    assertTrue(ids.size() == all.size());
+    assertTrue(Set.copyOf(ids).equals(all.stream().map(Patient::id).collect(toSet())));
+  }
+
+
+  @Test
+  public void testAddressQuery(){
+
+    var all = repo.findPatients(Patient.Filter.NONE);
+    var address = all.get(0).address();
+
+    // Substring matches, the same as on the full result
+    var street = address.street().substring(1);
+    var city = address.city().substring(0,2);
+
+    var patients = repo.findPatients(
+      new Patient.Filter(
+        Optional.empty(),
+        Optional.empty(),
+        Optional.empty(),
+        Optional.of(new Address.Filter(Optional.of(street),Optional.of(city)))
+      )
+    );
+
+    assertTrue(
+      Set.copyOf(patients).equals(
+        all.stream()
+          .filter(p -> p.address().street().contains(street) && p.address().city().contains(city))
+          .collect(toSet())
+      )
+    );
+  }
+
+
+  @Test
+  public void testFamilyNameQuery(){
+
+    var all = repo.findPatients(Patient.Filter.NONE);
+    var name = all.get(0).familyName();
+
+    // The familyName criterion is a substring match
+    var patients = repo.findPatients(
+      new Patient.Filter(
+        Optional.empty(),
+        Optional.of(name),
+        Optional.empty(),
+        Optional.empty()
+      )
+    );
+
+    assertTrue(
+      Set.copyOf(patients).equals(
+        all.stream()
+          .filter(p -> p.familyName().contains(name))
+          .collect(toSet())
+      )
+    );
+  }
+
+
+  // Same results as Patient.Filter.matches(...) on the saved Patients
+  @Test
+  public void testFilterSemantics() throws Exception {
+
+    var patients = Stream.generate(Generators::patient).limit(500).toList();
+    for (var patient : patients) repo.save(patient);
+
+    FilterFixtures.assertSameResults(patients,repo::findPatients);
+  }
+
 }
@@ -10,6 +10,7 @@ import jakarta.persistence.Column;
 import jakarta.persistence.EnumType;
 import jakarta.persistence.Enumerated;
 import jakarta.persistence.Table;
+import jakarta.persistence.Index;
 import jakarta.persistence.Embedded;
 import jakarta.persistence.AttributeOverrides;
 import jakarta.persistence.AttributeOverride;
@@ -28,7 +29,10 @@ import de.hsrt.meti.pms.core.Address;
 @Data
 @AllArgsConstructor(staticName = "of")
 @Entity
-@Table(name = "patients")
+@Table(
+  name = "patients",
+  indexes = @Index(name = "patients_city_street", columnList = "city,street")
+)
 final class JPAPatient
 {
 
@@ -1,10 +1,14 @@
 package de.hsrt.meti.pms.repo.jpa;
 
 
+import java.time.LocalDate;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
+import static java.util.stream.Collectors.toCollection;
 import static java.util.stream.Collectors.toList;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
@@ -12,12 +16,14 @@ import jakarta.persistence.Persistence;
 import jakarta.persistence.TypedQuery;
 import jakarta.persistence.criteria.CriteriaBuilder;
 import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Path;
 import jakarta.persistence.criteria.Predicate;
 import jakarta.persistence.criteria.Root;
 import de.hsrt.meti.pms.core.Id;
 import de.hsrt.meti.pms.core.Patient;
 import de.hsrt.meti.pms.core.Period;
 import de.hsrt.meti.pms.core.Gender;
+import de.hsrt.meti.pms.core.Address;
 import de.hsrt.meti.pms.core.Repository;
 
 
@@ -67,6 +73,50 @@ final class JPARepository implements Repository
   }
 
 
+  // Must match "hibernate.jdbc.batch_size" in persistence.xml
+  private static final int JDBC_BATCH_SIZE = 50;
+
+  // One transaction per batch, with the persistence context flushed (i.e. JDBC batches of INSERTs/UPDATEs sent)
+  // and cleared every JDBC_BATCH_SIZE entities, so that it doesn't grow with the batch.
+  // Like save(...) in other implementations, this is an upsert: the Patients already present in a chunk
+  // are loaded with one query, so that merging them doesn't cost a SELECT each, and the others are persisted
+  @Override
+  public void saveBatch(List<Patient> patients) throws Exception {
+
+    var txn = em.getTransaction();
+    txn.begin();
+    try {
+      for (int from = 0; from < patients.size(); from += JDBC_BATCH_SIZE){
+        var chunk = patients.subList(from,Math.min(from + JDBC_BATCH_SIZE,patients.size()));
+
+        // IDs of the Patients managed in the persistence context
+        var managed =
+          em.createQuery("SELECT p FROM JPAPatient p WHERE p.id IN :ids",JPAPatient.class)
+            .setParameter("ids",chunk.stream().map(p -> p.id().value()).collect(toList()))
+            .getResultStream()
+            .map(p -> p.revert().id().value())
+            .collect(toCollection(HashSet::new));
+
+        for (var patient : chunk){
+          // merge(...) copies onto the managed instance loaded above (or persisted earlier in the chunk)
+          if (managed.add(patient.id().value())) em.persist(JPAPatient.from(patient));
+          else em.merge(JPAPatient.from(patient));
+        }
+        em.flush();
+        em.clear();
+      }
+      txn.commit();
+
+    } catch (RuntimeException e){
+      if (txn.isActive()) txn.rollback();
+      throw e;
+
+    } finally {
+      em.clear();
+    }
+  }
+
+
   @Override
   public Optional<Patient> findPatient(Id<Patient> id){
     return
@@ -77,15 +127,13 @@ final class JPARepository implements Repository
   }
 
 
-  @Override
-  public List<Patient> findPatients(Patient.Filter filter){
-
-    // Using JPA Criteria API:
-    CriteriaBuilder cb = em.getCriteriaBuilder();
+  // LIKE pattern for a substring match of the value, i.e. with wildcard characters in it escaped
+  private static String containing(String value){
+    return "%" + value.replace("\\","\\\\").replace("%","\\%").replace("_","\\_") + "%";
+  }
 
-    CriteriaQuery<JPAPatient> query = cb.createQuery(JPAPatient.class);
-    Root<JPAPatient> root = query.from(JPAPatient.class);    
 
+  private static List<Predicate> criteria(CriteriaBuilder cb, Root<JPAPatient> root, Patient.Filter filter){
 
     var criteria = new ArrayList<Predicate>();
 
@@ -94,7 +142,7 @@ final class JPARepository implements Repository
     );
 
     filter.familyName().ifPresent(
-      name -> criteria.add(cb.like(root.get("familyName"),name))
+      name -> criteria.add(cb.like(root.get("familyName"),containing(name),'\\'))
     );
 
     filter.birthDatePeriod().map(Period::start).ifPresent(
@@ -105,13 +153,36 @@ final class JPARepository implements Repository
       date -> criteria.add(cb.lessThanOrEqualTo(root.get("birthDate"),date))
     );
 
+    filter.address().flatMap(Address.Filter::street).ifPresent(
+      street -> criteria.add(cb.like(root.get("address").get("street"),containing(street),'\\'))
+    );
+
+    filter.address().flatMap(Address.Filter::city).ifPresent(
+      city -> criteria.add(cb.like(root.get("address").get("city"),containing(city),'\\'))
+    );
+
+    return criteria;
+  }
 
-    Predicate[] preds = new Predicate[criteria.size()];
 
-    query.select(root).where(criteria.toArray(preds));
+  private CriteriaQuery<JPAPatient> criteriaQuery(Patient.Filter filter){
 
+    // Using JPA Criteria API:
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+
+    CriteriaQuery<JPAPatient> query = cb.createQuery(JPAPatient.class);
+    Root<JPAPatient> root = query.from(JPAPatient.class);    
+
+    Predicate[] preds = criteria(cb,root,filter).toArray(new Predicate[0]);
+
+    return query.select(root).where(preds);
+  }
+
+
+  @Override
+  public List<Patient> findPatients(Patient.Filter filter){
     return
-      em.createQuery(query)
+      em.createQuery(criteriaQuery(filter))
         .getResultList()
         .stream()
         .map(JPAPatient::revert)
@@ -119,6 +190,96 @@ final class JPARepository implements Repository
   }
 
 
+  // "Seek" condition (attribute, id) > (value, id) of keyset pagination
+  private static <T extends Comparable<? super T>> Predicate after(
+    CriteriaBuilder cb,
+    Root<JPAPatient> root,
+    String attribute,
+    T value,
+    String id
+  ){
+    Path<T> path = root.get(attribute);
+    return cb.or(
+      cb.greaterThan(path,value),
+      cb.and(cb.equal(path,value),cb.greaterThan(root.get("id"),id))
+    );
+  }
+
+
+  // Keyset pagination: ORDER BY sort key and id, limited to the page size (+ 1, to tell if there's a next page),
+  // continuing after the cursor position by a "seek" condition instead of an offset
+  @Override
+  public Patient.Page findPatients(Patient.Filter filter, Patient.PageRequest page){
+
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+
+    CriteriaQuery<JPAPatient> query = cb.createQuery(JPAPatient.class);
+    Root<JPAPatient> root = query.from(JPAPatient.class);    
+
+    var attribute =
+      switch(page.sortKey()){
+        case FAMILY_NAME -> "familyName";
+        case BIRTH_DATE  -> "birthDate";
+      };
+
+    var criteria = criteria(cb,root,filter);
+
+    page.after().ifPresent(
+      pos -> criteria.add(
+        switch(pos.value()){
+          case LocalDate date -> after(cb,root,attribute,date,pos.id().value());
+          default             -> after(cb,root,attribute,pos.value().toString(),pos.id().value());
+        }
+      )
+    );
+
+    query.select(root)
+      .where(criteria.toArray(new Predicate[0]))
+      .orderBy(cb.asc(root.get(attribute)),cb.asc(root.get("id")));
+
+    return page.toPage(
+      em.createQuery(query)
+        .setMaxResults(page.limit() + 1)
+        .getResultList()
+        .stream()
+        .map(JPAPatient::revert)
+        .collect(toList())
+    );
+  }
+
+
+  // Rows fetched per round trip by streamPatients(...)
+  private static final int FETCH_SIZE = Integer.getInteger("pms.repo.jpa.fetchSize",1_000);
+
+  @Override
+  public Stream<Patient> streamPatients(Patient.Filter filter){
+
+    // PostgreSQL only fetches rows in chunks of the fetch size within a transaction
+    var txn = em.getTransaction();
+    var ownTxn = !txn.isActive();
+    if (ownTxn) txn.begin();
+
+    return
+      em.createQuery(criteriaQuery(filter))
+        .setHint("org.hibernate.fetchSize",FETCH_SIZE)
+        .setHint("org.hibernate.readOnly",true)
+        .getResultStream()
+        .map(
+          entity -> {
+            var patient = entity.revert();
+            // Don't let the persistence context grow with the number of rows read
+            em.detach(entity);
+            return patient;
+          }
+        )
+        .onClose(
+          () -> {
+            if (ownTxn && txn.isActive()) txn.commit();
+          }
+        );
+  }
+
+
   @Override
   public Optional<Patient> deletePatient(Id<Patient> id) throws Exception {
 
@@ -8,9 +8,11 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import de.hsrt.meti.pms.core.Gender;
 import de.hsrt.meti.pms.core.Patient;
 import de.hsrt.meti.pms.core.Repository;
+import de.hsrt.meti.pms.gens.FilterFixtures;
 import de.hsrt.meti.pms.gens.Generators;
 
 
@@ -80,6 +82,31 @@ public final class Tests
   }
 
 
+  @Test
+  public void testSaveBatchUpserts() throws Exception {
+
+    var patients =
+      Stream.generate(Generators::patient)
+        .limit(123)
+        .toList();
+
+    repo.saveBatch(patients);
+
+    // Saving again, with some Patients changed, updates the existing ones
+    var changed =
+      patients.stream()
+        .map(p -> new Patient(p.id(),p.gender(),p.givenName(),p.familyName() + "-Changed",p.birthDate(),p.dateOfDeath(),p.healthInsurance(),p.address(),p.lastUpdate()))
+        .toList();
+
+    repo.saveBatch(changed);
+
+    assertTrue(
+      changed.stream()
+        .allMatch(p -> repo.findPatient(p.id()).map(Patient::familyName).equals(Optional.of(p.familyName())))
+    );
+  }
+
+
   @Test
   public void testPatientQuery(){
 
@@ -101,4 +128,15 @@ public final class Tests
 
   }
 
+
+  // Same results as Patient.Filter.matches(...) on the saved Patients
+  @Test
+  public void testFilterSemantics() throws Exception {
+
+    var patients = Stream.generate(Generators::patient).limit(500).toList();
+    for (var patient : patients) repo.save(patient);
+
+    FilterFixtures.assertSameResults(patients,repo::findPatients);
+  }
+
 }
@@ -0,0 +1,132 @@
+package de.hsrt.meti.pms.es.log;
+
+
+import java.nio.ByteBuffer;
+import de.hsrt.meti.pms.core.Address;
+import de.hsrt.meti.pms.core.Gender;
+import de.hsrt.meti.pms.core.PatientEvent;
+import de.hsrt.meti.pms.util.Binary;
+
+
+/*
+  Binary encoding of PatientEvents for the segment log, based on Binary (util), like the Codecs of domain objects:
+
+  schema version, id, type, version, timestamp, presence flags,
+  then the fields present among gender, givenName, familyName, birthDate, dateOfDeath, healthInsurance,
+  address (street, house, postalCode, city)
+
+  The ID comes first (after the schema version), so that it can be read without decoding the whole record.
+  A deletion record holds the schema version and the ID.
+
+  The schema version of events is independent of the one of the domain object Codecs.
+*/
+final class EventCodec
+{
+
+  private EventCodec(){}
+
+
+  static final int SCHEMA_VERSION = 1;
+
+
+  private static final int GENDER           = 1;
+  private static final int GIVEN_NAME       = 1 << 1;
+  private static final int FAMILY_NAME      = 1 << 2;
+  private static final int BIRTH_DATE       = 1 << 3;
+  private static final int DATE_OF_DEATH    = 1 << 4;
+  private static final int HEALTH_INSURANCE = 1 << 5;
+  private static final int ADDRESS          = 1 << 6;
+
+  private static final Gender[] GENDERS = Gender.values();
+  private static final PatientEvent.Type[] TYPES = PatientEvent.Type.values();
+
+  private static final ThreadLocal<Binary.Writer> WRITER = ThreadLocal.withInitial(Binary.Writer::new);
+  private static final ThreadLocal<Binary.Reader> READER = ThreadLocal.withInitial(Binary.Reader::new);
+
+
+  static byte[] encode(PatientEvent event){
+
+    var flags =
+      (event.gender() != null ? GENDER : 0) |
+      (event.givenName() != null ? GIVEN_NAME : 0) |
+      (event.familyName() != null ? FAMILY_NAME : 0) |
+      (event.birthDate() != null ? BIRTH_DATE : 0) |
+      (event.dateOfDeath() != null ? DATE_OF_DEATH : 0) |
+      (event.healthInsurance() != null ? HEALTH_INSURANCE : 0) |
+      (event.address() != null ? ADDRESS : 0);
+
+    var out = WRITER.get().reset();
+
+    out.putByte(SCHEMA_VERSION);
+    out.putId(event.id());
+    out.putEnum(event.type());
+    out.putVarInt(event.version());
+    out.putInstant(event.timestamp());
+    out.putByte(flags);
+
+    if (event.gender() != null) out.putEnum(event.gender());
+    if (event.givenName() != null) out.putString(event.givenName());
+    if (event.familyName() != null) out.putString(event.familyName());
+    if (event.birthDate() != null) out.putDate(event.birthDate());
+    if (event.dateOfDeath() != null) out.putDate(event.dateOfDeath());
+    if (event.healthInsurance() != null) out.putString(event.healthInsurance());
+    if (event.address() != null){
+      out.putString(event.address().street());
+      out.putString(event.address().house());
+      out.putString(event.address().postalCode());
+      out.putString(event.address().city());
+    }
+
+    return out.toByteArray();
+  }
+
+
+  static byte[] encodeId(String id){
+    return WRITER.get().reset().putByte(SCHEMA_VERSION).putId(id).toByteArray();
+  }
+
+
+  private static void checkVersion(Binary.Reader in){
+    var schemaVersion = in.getByte();
+    if (schemaVersion != SCHEMA_VERSION) throw new IllegalArgumentException("Unsupported event schema version " + schemaVersion);
+  }
+
+
+  // Decode the event starting at the buffer's position, advancing it
+  static PatientEvent decode(ByteBuffer buf){
+
+    var in = READER.get().reset(buf);
+
+    checkVersion(in);
+
+    var id        = in.getId();
+    var type      = in.getEnum(TYPES);
+    var version   = in.getVarInt();
+    var timestamp = in.getInstant();
+    var flags     = in.getByte();
+
+    return new PatientEvent(
+      type,
+      id,
+      (flags & GENDER) != 0 ? in.getEnum(GENDERS) : null,
+      (flags & GIVEN_NAME) != 0 ? in.getString() : null,
+      (flags & FAMILY_NAME) != 0 ? in.getString() : null,
+      (flags & BIRTH_DATE) != 0 ? in.getDate() : null,
+      (flags & DATE_OF_DEATH) != 0 ? in.getDate() : null,
+      (flags & HEALTH_INSURANCE) != 0 ? in.getString() : null,
+      (flags & ADDRESS) != 0 ? new Address(in.getString(),in.getString(),in.getString(),in.getString()) : null,
+      timestamp,
+      version
+    );
+  }
+
+
+  // Decode only the ID at the buffer's position (the start of an encoded event or ID)
+  static String decodeId(ByteBuffer buf){
+    var in = READER.get().reset(buf);
+    checkVersion(in);
+    return in.getId();
+  }
+
+
+}
@@ -0,0 +1,331 @@
+package de.hsrt.meti.pms.es.log;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import static java.util.UUID.randomUUID;
+import static java.util.stream.Collectors.toList;
+import de.hsrt.meti.pms.core.EventStore;
+import de.hsrt.meti.pms.core.Id;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.PatientEvent;
+import de.hsrt.meti.pms.util.SegmentLog;
+
+
+/*
+  Embedded EventStore keeping the events in a local SegmentLog, e.g. for single-node deployments and tests
+  (with the same semantics as MongoDBEventStore, but without a database server):
+
+  - Events are appended to the log as EVENT records, a Patient.Delete as DELETE record with the Patient ID,
+    which logically deletes all its events (they stay in the log as garbage).
+  - The heap holds a per-Patient index of the locations of its events, in order of version,
+    and the current state of each Patient, which serve findPatient(s)(...) without reading the log.
+  - Past states are folded from the Patient's events, decoded in place from the memory-mapped segments.
+  - On opening, index and current states are rebuilt from the log.
+
+  Appends are serialized by a write lock: there are no concurrent appenders, so the expected version
+  is checked under the lock instead of being detected as conflict afterwards.
+*/
+final class SegmentLogEventStore implements EventStore
+{
+
+  // Service Provider Interface (SPI): one instance per directory, as the log must not be opened twice
+  public static final class Provider implements EventStore.Provider
+  {
+    private static SegmentLogEventStore instance = null;
+
+    @Override
+    public EventStore getInstance(){
+      synchronized (Provider.class){
+        if (instance == null){
+          instance =
+            new SegmentLogEventStore(
+              Path.of(Optional.ofNullable(System.getProperty("pms.es.log.dir")).orElse("pms-events")),
+              Long.getLong("pms.es.log.segmentSize",64L * 1024 * 1024)
+            );
+        }
+        return instance;
+      }
+    }
+  }
+
+
+  private static final int MAGIC = 0x504D5345; // "PMSE"
+
+  static final byte EVENT = 1;
+  static final byte DELETE = 2;
+
+
+  // Locations of a Patient's events in the log, in order of version (i.e. the version is the count)
+  private static final class Locations
+  {
+    private long[] locations = new long[4];
+    private int count = 0;
+
+    void add(long location){
+      if (count == locations.length) locations = Arrays.copyOf(locations,2 * count);
+      locations[count++] = location;
+    }
+
+    long[] toArray(){
+      return Arrays.copyOf(locations,count);
+    }
+  }
+
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final SegmentLog log;
+  private final Map<String,Locations> index = new HashMap<>();
+  private final Map<String,Patient> patients = new HashMap<>();
+
+
+  SegmentLogEventStore(Path dir, long segmentSize){
+    try {
+      Files.createDirectories(dir);
+      this.log = SegmentLog.open(n -> dir.resolve(String.format("events-%05d.seg",n)),MAGIC,segmentSize,this::recover);
+    } catch (IOException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  private void recover(byte type, long location, ByteBuffer body){
+    if (type == EVENT){
+      var event = EventCodec.decode(body);
+      index.computeIfAbsent(event.id(),id -> new Locations()).add(location);
+      patients.compute(event.id(),(id,patient) -> Patient.apply(Optional.ofNullable(patient),event).orElse(null));
+    } else {
+      var id = EventCodec.decodeId(body);
+      index.remove(id);
+      patients.remove(id);
+    }
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Commands
+
+  private int currentVersion(Id<Patient> id){
+    return Optional.ofNullable(index.get(id.value())).map(locs -> locs.count).orElse(0);
+  }
+
+
+  private static void checkVersion(Id<Patient> id, int expectedVersion, int currentVersion){
+    if (expectedVersion != currentVersion){
+      throw new ConcurrentModificationException(
+        "Patient " + id.value() + " is at version " + currentVersion + ", not at expected version " + expectedVersion
+      );
+    }
+  }
+
+
+  private Patient append(PatientEvent event) throws IOException {
+    var location = log.append(EVENT,EventCodec.encode(event));
+    index.computeIfAbsent(event.id(),id -> new Locations()).add(location);
+    var patient = Patient.apply(Optional.ofNullable(patients.get(event.id())),event).orElseThrow();
+    patients.put(event.id(),patient);
+    return patient;
+  }
+
+
+  // Without expected version, the Command is applied to the current version,
+  // which can't change concurrently while holding the write lock
+  @Override
+  public Patient process(Patient.Command cmd) throws Exception {
+    lock.writeLock().lock();
+    try {
+      return switch(cmd){
+        case Patient.Create cr  -> process(cr,0);
+        case Patient.Update up  -> process(up,currentVersion(up.id()));
+        case Patient.Delete del -> process(del,currentVersion(del.id()));
+      };
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  @Override
+  public Patient process(Patient.Command cmd, int expectedVersion) throws Exception {
+
+    lock.writeLock().lock();
+    try {
+      return switch(cmd){
+
+        case Patient.Create cr -> {
+
+          // A new Patient has no events yet
+          if (expectedVersion != 0){
+            throw new ConcurrentModificationException("A new Patient is at version 0, not at expected version " + expectedVersion);
+          }
+
+          String id;
+          do {
+            id = randomUUID().toString();
+          } while (index.containsKey(id));
+
+          yield append(
+            new PatientEvent(
+              PatientEvent.Type.CREATED,
+              id,
+              cr.gender(),
+              cr.givenName(),
+              cr.familyName(),
+              cr.birthDate(),
+              null,             // date of death not set upon creation
+              cr.healthInsurance(),
+              cr.address(),
+              Instant.now(),
+              1
+            )
+          );
+        }
+
+        case Patient.Update up -> {
+
+          var version = currentVersion(up.id());
+          if (version == 0) throw new NoSuchElementException("No Patient " + up.id().value());
+          checkVersion(up.id(),expectedVersion,version);
+
+          yield append(
+            new PatientEvent(
+              PatientEvent.Type.UPDATED,
+              up.id().value(),
+              up.gender().orElse(null),
+              up.givenName().orElse(null),
+              up.familyName().orElse(null),
+              null,               // Birthdate not update-able
+              up.dateOfDeath().orElse(null),
+              up.healthInsurance().orElse(null),
+              up.address().orElse(null),
+              Instant.now(),
+              version + 1
+            )
+          );
+        }
+
+        case Patient.Delete del -> {
+
+          checkVersion(del.id(),expectedVersion,currentVersion(del.id()));
+
+          var patient = Optional.ofNullable(patients.get(del.id().value())).orElseThrow();
+
+          log.append(DELETE,EventCodec.encodeId(del.id().value()));
+          index.remove(del.id().value());
+          patients.remove(del.id().value());
+
+          yield patient;
+        }
+
+      };
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  // --------------------------------------------------------------------------
+  // Queries
+
+  @Override
+  public Optional<Integer> patientVersion(Id<Patient> id){
+    lock.readLock().lock();
+    try {
+      return Optional.of(currentVersion(id)).filter(v -> v > 0);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public Optional<Patient> findPatient(Id<Patient> id){
+    lock.readLock().lock();
+    try {
+      return Optional.ofNullable(patients.get(id.value()));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  // State folded from the events (in order of version) which occurred at or before t
+  private Optional<Patient> stateAt(long[] locations, Instant t){
+    Optional<Patient> patient = Optional.empty();
+    for (var location : locations){
+      var event = EventCodec.decode(log.read(location));
+      if (!event.timestamp().isAfter(t)) patient = Patient.apply(patient,event);
+    }
+    return patient;
+  }
+
+
+  @Override
+  public Optional<Patient> stateOfPatientAt(Id<Patient> id, Instant t){
+    lock.readLock().lock();
+    try {
+      return Optional.ofNullable(index.get(id.value())).flatMap(locs -> stateAt(locs.toArray(),t));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public List<Patient> findPatients(Patient.Filter filter){
+    lock.readLock().lock();
+    try {
+      return
+        patients.values()
+          .stream()
+          .filter(filter::matches)
+          .collect(toList());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  @Override
+  public List<Patient> findPatientsAt(Patient.Filter filter, Instant t){
+    lock.readLock().lock();
+    try {
+      return
+        index.values()
+          .parallelStream()
+          .map(locs -> stateAt(locs.toArray(),t))
+          .flatMap(Optional::stream)
+          .filter(filter::matches)
+          .collect(toList());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+
+  // Force written events to the storage device
+  void flush(){
+    lock.readLock().lock();
+    try {
+      log.flush();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+}
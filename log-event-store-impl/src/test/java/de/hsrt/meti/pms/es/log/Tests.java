@@ -0,0 +1,230 @@
+package de.hsrt.meti.pms.es.log;
+
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import de.hsrt.meti.pms.core.EventStore;
+import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.gens.FilterFixtures;
+import static de.hsrt.meti.pms.gens.Generators.*;
+
+
+
+public final class Tests
+{
+
+  private static EventStore eventStore = null;
+
+
+  private static Patient.Create createPatient(){
+
+    // Get a random generated Patient for intital values
+    var patient = patient();
+
+    return new Patient.Create(
+      patient.gender(),
+      patient.givenName(),
+      patient.familyName(),
+      patient.birthDate(),
+      patient.healthInsurance(),
+      patient.address()
+    );
+  }
+
+  private static Patient.Update updateName(Patient patient){
+
+    return new Patient.Update(
+      patient.id(),
+      Optional.empty(),
+      Optional.empty(),
+      Optional.of(oneOf(FAMILY_NAMES)),
+      Optional.empty(),
+      Optional.empty(),
+      Optional.empty()
+    );
+
+  }
+
+
+  @BeforeAll
+  public static void init() throws Exception {
+
+    System.setProperty("pms.es.log.dir",Files.createTempDirectory("pms-events").toString());
+
+    eventStore = EventStore.getInstance();
+  }
+
+
+  @Test
+  public void testPatientLifeCycle() throws Exception {
+
+    var patient = eventStore.process(createPatient());
+
+    var states = new ArrayList<Patient>();
+    for (int i = 0; i < 5; i++){
+      states.add(eventStore.process(updateName(patient)));
+    }
+
+    var last = states.get(states.size() - 1);
+
+    assertEquals(Optional.of(last),eventStore.findPatient(patient.id()));
+    assertEquals(Optional.of(6),eventStore.patientVersion(patient.id()));
+
+    // Point-in-time state
+    var earlier = states.get(1);
+    assertEquals(Optional.of(earlier),eventStore.stateOfPatientAt(patient.id(),earlier.lastUpdate()));
+
+    eventStore.process(new Patient.Delete(patient.id()));
+
+    assertTrue(
+      eventStore.findPatient(patient.id()).isEmpty() &&
+      eventStore.stateOfPatientAt(patient.id(),earlier.lastUpdate()).isEmpty()
+    );
+  }
+
+
+  @Test
+  public void testOptimisticConcurrency() throws Exception {
+
+    var patient = eventStore.process(createPatient(),0);
+
+    // Two updates based on version 1: the second one conflicts
+    eventStore.process(updateName(patient),1);
+
+    assertThrows(
+      ConcurrentModificationException.class,
+      () -> eventStore.process(updateName(patient),1)
+    );
+  }
+
+
+  @Test
+  public void testPatientsAt() throws Exception {
+
+    var patient = eventStore.process(createPatient());
+    var t = patient.lastUpdate();
+
+    eventStore.process(updateName(patient));
+    var later = eventStore.process(createPatient());
+
+    var states = eventStore.findPatientsAt(Patient.Filter.NONE,t);
+
+    // The Patient as created, but not the one created after t
+    assertTrue(
+      states.contains(patient) &&
+      states.stream().noneMatch(p -> p.id().equals(later.id()))
+    );
+  }
+
+
+  @Test
+  public void testRestart() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-events");
+
+    // Small segments, so that the events span several segment files
+    var store = new SegmentLogEventStore(dir,4 * 1024);
+
+    var patients = new ArrayList<Patient>();
+    for (int i = 0; i < 50; i++){
+      var patient = store.process(createPatient());
+      patients.add(store.process(updateName(patient)));
+    }
+    store.process(new Patient.Delete(patients.remove(0).id()));
+
+    var reopened = new SegmentLogEventStore(dir,4 * 1024);
+
+    assertEquals(
+      patients.stream().map(p -> p.id().value()).sorted().toList(),
+      reopened.findPatients(Patient.Filter.NONE).stream().map(p -> p.id().value()).sorted().toList()
+    );
+    for (var patient : patients){
+      assertEquals(Optional.of(patient),reopened.findPatient(patient.id()));
+    }
+  }
+
+
+  // A corrupt record ends the recovery, also of the later segments, so that no version is skipped
+  @Test
+  public void testCorruptRecord() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-events");
+    var store = new SegmentLogEventStore(dir,4 * 1024);
+
+    // States in order of creation, each as created and as updated
+    var states = new ArrayList<Patient>();
+    for (int i = 0; i < 100; i++){
+      var patient = store.process(createPatient());
+      states.add(patient);
+      states.add(store.process(updateName(patient)));
+    }
+
+    // Flip a byte of the CRC of the first record in the second segment
+    try (var channel = FileChannel.open(dir.resolve("events-00001.seg"),StandardOpenOption.READ,StandardOpenOption.WRITE)){
+      var crc = ByteBuffer.allocate(1);
+      channel.read(crc,12);
+      crc.put(0,(byte) ~crc.get(0)).rewind();
+      channel.write(crc,12);
+    }
+
+    var reopened = new SegmentLogEventStore(dir,4 * 1024);
+    var recovered = reopened.findPatients(Patient.Filter.NONE);
+
+    assertTrue(!recovered.isEmpty() && recovered.size() < 100);
+    for (var patient : recovered){
+      var version = reopened.patientVersion(patient.id()).orElseThrow();
+      assertEquals(version - 1,states.indexOf(patient) % 2);
+    }
+    assertTrue(Files.exists(dir.resolve("events-00002.seg.discarded")));
+
+    // Appends continue after the last valid record
+    var created = reopened.process(createPatient());
+    assertEquals(Optional.of(created),new SegmentLogEventStore(dir,4 * 1024).findPatient(created.id()));
+  }
+
+
+  // A segment file created right before a crash, without header yet, is recovered as empty segment
+  @Test
+  public void testSegmentWithoutHeader() throws Exception {
+
+    var dir = Files.createTempDirectory("pms-events");
+    var store = new SegmentLogEventStore(dir,4 * 1024);
+
+    var patients = new ArrayList<Patient>();
+    for (int i = 0; i < 10; i++) patients.add(store.process(createPatient()));
+
+    try (var channel = FileChannel.open(dir.resolve("events-00001.seg"),StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE)){
+      channel.write(ByteBuffer.allocate(4 * 1024));
+    }
+
+    var reopened = new SegmentLogEventStore(dir,4 * 1024);
+    for (var patient : patients){
+      assertEquals(Optional.of(patient),reopened.findPatient(patient.id()));
+    }
+
+    var created = reopened.process(createPatient());
+    assertEquals(Optional.of(created),new SegmentLogEventStore(dir,4 * 1024).findPatient(created.id()));
+  }
+
+
+  // Same results as Patient.Filter.matches(...) on the created Patients
+  @Test
+  public void testFilterSemantics() throws Exception {
+
+    var patients = new ArrayList<Patient>();
+    for (int i = 0; i < 500; i++) patients.add(eventStore.process(createPatient()));
+
+    FilterFixtures.assertSameResults(patients,eventStore::findPatients);
+  }
+
+}
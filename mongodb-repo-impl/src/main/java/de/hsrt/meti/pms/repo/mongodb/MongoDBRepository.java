@@ -1,6 +1,8 @@
 package de.hsrt.meti.pms.repo.mongodb;
 
 
+import java.time.LocalDate;
+import static java.time.ZoneOffset.UTC;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
@@ -8,10 +10,22 @@ import static java.util.stream.StreamSupport.stream;
 import static java.util.stream.Collectors.toList;
 import java.util.ArrayList;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.regex.Pattern;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoClients;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
 import static com.mongodb.client.model.Filters.*;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.bson.conversions.Bson;
 import de.hsrt.meti.pms.core.Id;
@@ -70,10 +84,45 @@ class MongoDBRepository implements Repository
     var db =
       client.getDatabase(dbName);
 
-    return new MongoDBRepository(
-      db.getCollection("patients",MongoPatient.class)
+    var patients =
+      db.getCollection("patients",MongoPatient.class);
+
+    createIndexes(patients);
+
+    return new MongoDBRepository(patients);
+
+  }
+
+
+  // Index for findPatientSummaries(...): it contains all filter and summary fields (except address),
+  // so these queries are answered from the index alone
+  private static final Bson SUMMARY_INDEX =
+    Indexes.ascending("familyName","birthDate","gender","givenName","id");
+
+  private static final Bson SUMMARY_FIELDS =
+    Projections.fields(
+      Projections.include("id","gender","givenName","familyName","birthDate"),
+      Projections.excludeId()
     );
 
+
+  // Create indexes, unless present
+  private static void createIndexes(MongoCollection<MongoPatient> patients){
+
+    // ID lookups (and uniqueness of IDs)
+    patients.createIndex(Indexes.ascending("id"),new IndexOptions().unique(true));
+
+    // Filter criteria: gender (with birth-date range), and address (an unanchored regex can't seek in an index,
+    // but scanning the (smaller) index instead of the documents still saves fetching non-matching documents)
+    patients.createIndex(Indexes.ascending("gender","birthDate"));
+    patients.createIndex(Indexes.ascending("address.city"));
+    patients.createIndex(Indexes.ascending("address.street"));
+
+    // Keyset pagination, see findPatients(Filter,PageRequest), also used for familyName and birth-date range criteria
+    patients.createIndex(Indexes.ascending("familyName","id"));
+    patients.createIndex(Indexes.ascending("birthDate","id"));
+
+    patients.createIndex(SUMMARY_INDEX);
   }
 
 
@@ -98,15 +147,24 @@ class MongoDBRepository implements Repository
   }
 
 
+  // Upsert: one atomic round trip, replacing the Patient document, or inserting it if absent
+  // (the unique index on id makes concurrent upserts of a new Patient insert it only once)
   @Override
   public void save(Patient patient) throws Exception {
+    patients.replaceOne(withId(patient.id()),MongoPatient.from(patient),new ReplaceOptions().upsert(true));
+  }
 
-    var id = patient.id();
 
-    var inserted =
-      findPatient(id).isPresent() ?
-        patients.findOneAndReplace(withId(id),MongoPatient.from(patient)) :
-        patients.insertOne(MongoPatient.from(patient));
+  // One round trip per batch: unordered bulk write of upserts (replace, or insert if absent)
+  @Override
+  public void saveBatch(List<Patient> batch) throws Exception {
+
+    var upserts =
+      batch.stream()
+        .map(p -> new ReplaceOneModel<>(withId(p.id()),MongoPatient.from(p),new ReplaceOptions().upsert(true)))
+        .collect(toList());
+
+    patients.bulkWrite(upserts,new BulkWriteOptions().ordered(false));
   }
 
 
@@ -120,44 +178,142 @@ class MongoDBRepository implements Repository
   }
 
 
-  @Override
-  public List<Patient> findPatients(Patient.Filter filter){
+  // Substring match, see Patient.Filter.matches(...), by unanchored regex: it can't seek in an index on the field,
+  // but scanning its keys still saves fetching non-matching documents. The value is always quoted,
+  // so that it never reaches the regex engine as pattern
+  private static Bson containing(String field, String value){
+    return regex(field,Pattern.quote(value));
+  }
+
+
+  private static List<Bson> criteria(Patient.Filter filter){
 
     // Convert Patient.Filter into MongoDB filter:
     List<Bson> criteria = new ArrayList<>();
 
     // Add present filter criteria to list
     filter.gender().ifPresent(set -> criteria.add(in("gender",set)));    
-    filter.familyName().ifPresent(name -> criteria.add(regex("familyName",name)));
+    filter.familyName().ifPresent(name -> criteria.add(containing("familyName",name)));
     filter.birthDatePeriod().ifPresent(
       period -> {
         criteria.add(gte("birthDate",period.start()));
         period.end().ifPresent(date -> criteria.add(lte("birthDate",date)));
       }
     );   
-    //TODO: Address filter criteria... 
-  
+    filter.address().flatMap(Address.Filter::street).ifPresent(street -> criteria.add(containing("address.street",street)));
+    filter.address().flatMap(Address.Filter::city).ifPresent(city -> criteria.add(containing("address.city",city)));
+
+    return criteria;
+  }
+
+
+  private FindIterable<MongoPatient> query(List<Bson> criteria){
     // Submit query with criteria combined by 'and' logic (crit1 and crit2 and ...), if present
-    var results =
+    return
       criteria.isEmpty() ?
         patients.find() :
         patients.find(and(criteria));
+  }
+
 
+  @Override
+  public List<Patient> findPatients(Patient.Filter filter){
     return
+      stream(query(criteria(filter)).spliterator(),false)
+        .map(MongoPatient::revert)
+        .collect(toList());
+  }
+
+
+  // Keyset pagination: sorted by sort key and id, limited to the page size (+ 1, to tell if there's a next page),
+  // continuing after the cursor position by a range condition on (sort key, id) instead of skip(...)
+  @Override
+  public Patient.Page findPatients(Patient.Filter filter, Patient.PageRequest page){
+
+    var field =
+      switch(page.sortKey()){
+        case FAMILY_NAME -> "familyName";
+        case BIRTH_DATE  -> "birthDate";
+      };
+
+    var criteria = criteria(filter);
+
+    page.after().ifPresent(
+      pos -> criteria.add(
+        or(
+          gt(field,pos.value()),
+          and(eq(field,pos.value()),gt("id",pos.id().value()))
+        )
+      )
+    );
+
+    var results =
+      query(criteria)
+        .sort(Sorts.ascending(field,"id"))
+        .limit(page.limit() + 1);
+
+    return page.toPage(
       stream(results.spliterator(),false)
         .map(MongoPatient::revert)
+        .collect(toList())
+    );
+  }
+
+
+  // Covered query: only the summary fields are projected (without _id), and the filter fields are in the same index.
+  // Address criteria aren't in the index, so the planner is left to choose an index for them
+  @Override
+  public List<Patient.Summary> findPatientSummaries(Patient.Filter filter){
+
+    var criteria = criteria(filter);
+
+    var documents = patients.withDocumentClass(Document.class);
+
+    var results =
+      (criteria.isEmpty() ? documents.find() : documents.find(and(criteria)))
+        .projection(SUMMARY_FIELDS);
+
+    if (filter.address().isEmpty()) results = results.hint(SUMMARY_INDEX);
+
+    return
+      stream(results.spliterator(),false)
+        .map(
+          doc -> new Patient.Summary(
+            new Id<>(doc.getString("id")),
+            Gender.valueOf(doc.getString("gender")),
+            doc.getString("givenName"),
+            doc.getString("familyName"),
+            // LocalDate is stored as date-time at midnight UTC
+            LocalDate.ofInstant(doc.getDate("birthDate").toInstant(),UTC)
+          )
+        )
         .collect(toList());
   }
 
 
+  // Documents fetched per round trip by streamPatients(...)
+  private static final int BATCH_SIZE = Integer.getInteger("pms.mongodb.batchSize",1_000);
+
   @Override
-  public Optional<Patient> deletePatient(Id<Patient> id) throws Exception {
+  public Stream<Patient> streamPatients(Patient.Filter filter){
 
-    var patient = findPatient(id);
+    var cursor = query(criteria(filter)).batchSize(BATCH_SIZE).cursor();
+
+    return
+      stream(Spliterators.spliteratorUnknownSize(cursor,Spliterator.ORDERED | Spliterator.NONNULL),false)
+        .map(MongoPatient::revert)
+        .onClose(cursor::close);
+  }
 
-    patients.deleteOne(withId(id)); 
 
-    return patient;
+  // One atomic round trip, returning the deleted document
+  @Override
+  public Optional<Patient> deletePatient(Id<Patient> id) throws Exception {
+    return
+      Optional.ofNullable(
+        patients.findOneAndDelete(withId(id))
+      )
+      .map(MongoPatient::revert);
   }
 
 }
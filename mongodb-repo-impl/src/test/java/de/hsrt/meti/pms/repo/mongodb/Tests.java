@@ -8,9 +8,12 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static java.util.stream.Collectors.toSet;
 import de.hsrt.meti.pms.core.Gender;
 import de.hsrt.meti.pms.core.Patient;
 import de.hsrt.meti.pms.core.Repository;
+import de.hsrt.meti.pms.gens.FilterFixtures;
 import de.hsrt.meti.pms.gens.Generators;
 
 
@@ -102,4 +105,36 @@ public final class Tests
 
   }
 
+
+  @Test
+  public void testPatientSummaries(){
+
+    var filter =
+      new Patient.Filter(
+        Optional.of(Set.of(Gender.FEMALE)),
+        Optional.empty(),
+        Optional.empty(),
+        Optional.empty()
+      );
+
+    assertTrue(
+      Set.copyOf(repo.findPatientSummaries(filter)).equals(
+        repo.findPatients(filter).stream()
+          .map(Patient.Summary::of)
+          .collect(toSet())
+      )
+    );
+  }
+
+
+  // Same results as Patient.Filter.matches(...) on the saved Patients
+  @Test
+  public void testFilterSemantics() throws Exception {
+
+    var patients = Stream.generate(Generators::patient).limit(500).toList();
+    for (var patient : patients) repo.save(patient);
+
+    FilterFixtures.assertSameResults(patients,repo::findPatients);
+  }
+
 }
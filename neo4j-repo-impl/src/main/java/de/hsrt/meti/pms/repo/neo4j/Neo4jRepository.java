@@ -2,10 +2,13 @@ package de.hsrt.meti.pms.repo.neo4j;
 
 
 import static java.time.ZoneOffset.UTC;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import static java.util.Map.entry;
 import java.util.Optional;
+import java.util.stream.Stream;
 import static java.util.UUID.randomUUID;
 import org.neo4j.driver.AuthTokens;
 import org.neo4j.driver.Driver;
@@ -57,7 +60,14 @@ class Neo4jRepository implements Repository
     var pwd  = System.getProperty("pms.neo4j.password");
     var url  = System.getProperty("pms.neo4j.url");
 
-    return new Neo4jRepository(GraphDatabase.driver(url,AuthTokens.basic(user,pwd)));
+    var driver = GraphDatabase.driver(url,AuthTokens.basic(user,pwd));
+
+    // Schema operations can't run in the same transaction as data operations, so one auto-commit query each
+    try (var session = driver.session()){
+      SCHEMA.forEach(query -> session.run(query).consume());
+    }
+
+    return new Neo4jRepository(driver);
   }
 
   static Neo4jRepository instance(){
@@ -66,6 +76,20 @@ class Neo4jRepository implements Repository
   
   
   
+  // Uniqueness of Patient IDs (which is backed by an index used by MERGE/MATCH on id),
+  // range indexes for birth-date ranges and sorting (with id as tie-breaker for keyset pagination),
+  // and text indexes for CONTAINS / STARTS WITH on names and address components
+  private static final List<String> SCHEMA = List.of(
+    "CREATE CONSTRAINT patient_id IF NOT EXISTS FOR (p: Patient) REQUIRE p.id IS UNIQUE",
+    "CREATE INDEX patient_gender IF NOT EXISTS FOR (p: Patient) ON (p.gender)",
+    "CREATE INDEX patient_birthDate_id IF NOT EXISTS FOR (p: Patient) ON (p.birthDate, p.id)",
+    "CREATE INDEX patient_familyName_id IF NOT EXISTS FOR (p: Patient) ON (p.familyName, p.id)",
+    "CREATE TEXT INDEX patient_familyName IF NOT EXISTS FOR (p: Patient) ON (p.familyName)",
+    "CREATE TEXT INDEX address_street IF NOT EXISTS FOR (a: Address) ON (a.street)",
+    "CREATE TEXT INDEX address_city IF NOT EXISTS FOR (a: Address) ON (a.city)"
+  );
+
+
   private static final String SAVE_PATIENT = """
     MERGE (p: Patient { id: $id })
     SET
@@ -86,14 +110,36 @@ class Neo4jRepository implements Repository
      (p)<-[r:ADDRESS]-(a);
   """;
 
+  // Same as SAVE_PATIENT, for a list of parameter maps
+  private static final String SAVE_PATIENTS = """
+    UNWIND $rows AS row
+    MERGE (p: Patient { id: row.id })
+    SET
+      p.gender = row.gender,
+      p.givenName = row.givenName,
+      p.familyName = row.familyName,
+      p.birthDate = row.birthDate,
+      p.dateOfDeath = row.dateOfDeath,
+      p.healthInsurance = row.healthInsurance,
+      p.lastUpdate = row.lastUpdate
+    MERGE (a: Address {
+      street: row.street,
+      house: row.house,
+      postalCode: row.postalCode,
+      city: row.city
+    })
+    MERGE
+     (p)<-[r:ADDRESS]-(a);
+  """;
+
   private static final String GET_PATIENT =
     "MATCH (p: Patient { id: $id })-[]-(a: Address) RETURN p,a;";
 
   private static final String DELETE_PATIENT =
     "MATCH (p: Patient { id: $id }) DETACH DELETE p;";
 
-  private static final String GET_PATIENTS =
-    "MATCH (p: Patient)-[]-(a: Address) RETURN p,a;";
+  private static final String MATCH_PATIENTS =
+    "MATCH (p: Patient)<-[:ADDRESS]-(a: Address)";
 
 
   private static Map<String,Object> parameters(Patient patient){
@@ -143,6 +189,81 @@ class Neo4jRepository implements Repository
  
 
  
+  // WHERE clause with its parameters, for a Filter
+  private static record Where(String cypher, Map<String,Object> params)
+  {
+    static final Where NONE = new Where("",Map.of());
+
+    Where and(String condition, Map<String,Object> values){
+      var all = new HashMap<String,Object>(params);
+      all.putAll(values);
+      return new Where((cypher.isEmpty() ? "WHERE " : cypher + " AND ") + condition,all);
+    }
+  }
+
+
+  // familyName and Address criteria match as substring (CONTAINS), see Patient.Filter.matches(...).
+  // The value is always passed as parameter, never interpreted
+  private static String textCondition(String property, String param){
+    return property + " CONTAINS $" + param;
+  }
+
+
+  private static Where whereClause(Patient.Filter filter){
+
+    var conditions = new ArrayList<String>();
+    var params = new HashMap<String,Object>();
+
+    filter.gender().ifPresent(
+      set -> {
+        conditions.add("p.gender IN $genders");
+        params.put("genders",value(set.stream().map(Gender::toString).toList()));
+      }
+    );
+    filter.familyName().ifPresent(
+      n -> {
+        conditions.add(textCondition("p.familyName","familyName"));
+        params.put("familyName",value(n));
+      }
+    );
+    filter.birthDatePeriod().map(Period::start).ifPresent(
+      d -> {
+        conditions.add("p.birthDate >= $birthDateFrom");
+        params.put("birthDateFrom",value(d));
+      }
+    );
+    filter.birthDatePeriod().flatMap(Period::end).ifPresent(
+      d -> {
+        conditions.add("p.birthDate <= $birthDateTo");
+        params.put("birthDateTo",value(d));
+      }
+    );
+    filter.address().flatMap(Address.Filter::street).ifPresent(
+      s -> {
+        conditions.add(textCondition("a.street","street"));
+        params.put("street",value(s));
+      }
+    );
+    filter.address().flatMap(Address.Filter::city).ifPresent(
+      c -> {
+        conditions.add(textCondition("a.city","city"));
+        params.put("city",value(c));
+      }
+    );
+
+    return
+      conditions.isEmpty() ?
+        Where.NONE :
+        new Where("WHERE " + String.join(" AND ",conditions),params);
+  }
+
+
+  private static Query patientsQuery(Patient.Filter filter){
+    var where = whereClause(filter);
+    return new Query(MATCH_PATIENTS + " " + where.cypher() + " RETURN p,a;",where.params());
+  }
+
+
   @Override
   public Id<Patient> patientId(){
     return new Id<>(randomUUID().toString());
@@ -164,6 +285,27 @@ class Neo4jRepository implements Repository
   }
 
 
+  // One transaction and query per batch
+  @Override
+  public void saveBatch(List<Patient> patients) throws Exception {
+
+    var rows =
+      patients.stream()
+        .map(Neo4jRepository::parameters)
+        .toList();
+
+    try (var session = driver.session()){
+      session.executeWriteWithoutResult(
+        txn -> txn.run(
+          SAVE_PATIENTS,
+          Map.of("rows",value(rows))
+        )
+      );
+    }
+
+  }
+
+
   @Override
   public Optional<Patient> findPatient(Id<Patient> id){
 
@@ -190,7 +332,7 @@ class Neo4jRepository implements Repository
     try (var session = driver.session()){ 
       var result =
         session.run(
-          GET_PATIENTS,   //TODO: Filter criteria!
+          patientsQuery(filter),
           TransactionConfig.empty()
         );
 
@@ -201,6 +343,78 @@ class Neo4jRepository implements Repository
   }
 
 
+  // Keyset pagination: ORDER BY sort key and id, LIMIT to the page size (+ 1, to tell if there's a next page),
+  // continuing after the cursor position by a "seek" condition instead of SKIP
+  private static String pageQuery(String property, Where where){
+    return
+      MATCH_PATIENTS + " " + where.cypher() +
+      " RETURN p,a ORDER BY p." + property + ", p.id LIMIT $limit;";
+  }
+
+
+  @Override
+  public Patient.Page findPatients(Patient.Filter filter, Patient.PageRequest page){
+
+    var property =
+      switch(page.sortKey()){
+        case FAMILY_NAME -> "familyName";
+        case BIRTH_DATE  -> "birthDate";
+      };
+
+    var where =
+      page.after()
+        .map(
+          pos -> whereClause(filter).and(
+            "(p." + property + " > $value OR (p." + property + " = $value AND p.id > $id))",
+            Map.of(
+              "value",value(pos.value()),
+              "id",   value(pos.id().value())
+            )
+          )
+        )
+        .orElseGet(() -> whereClause(filter));
+
+    var params = new HashMap<String,Object>(where.params());
+    params.put("limit",value(page.limit() + 1));
+
+    try (var session = driver.session()){ 
+      var result =
+        session.run(
+          pageQuery(property,where),
+          params,
+          TransactionConfig.empty()
+        );
+
+      return page.toPage(result.list(record -> patientFrom(record)));
+    }
+  }
+
+
+  // Records are pulled from the server in batches (the driver's fetch size) as the Stream is consumed,
+  // so the session stays open until the Stream is closed
+  @Override
+  public Stream<Patient> streamPatients(Patient.Filter filter){
+
+    var session = driver.session();
+    try {
+      var result =
+        session.run(
+          patientsQuery(filter),
+          TransactionConfig.empty()
+        );
+
+      return
+        result.stream()
+          .map(record -> patientFrom(record))
+          .onClose(session::close);
+
+    } catch (RuntimeException e){
+      session.close();
+      throw e;
+    }
+  }
+
+
   @Override
   public Optional<Patient> deletePatient(Id<Patient> id) throws Exception {
 
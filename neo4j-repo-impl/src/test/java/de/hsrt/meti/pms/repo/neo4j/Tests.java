@@ -1,6 +1,8 @@
 package de.hsrt.meti.pms.repo.neo4j;
 
 
+import java.time.LocalDate;
+import java.util.List;
 import java.util.Set;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -8,9 +10,14 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static java.util.stream.Collectors.toSet;
+import de.hsrt.meti.pms.core.Address;
 import de.hsrt.meti.pms.core.Gender;
 import de.hsrt.meti.pms.core.Patient;
+import de.hsrt.meti.pms.core.Period;
 import de.hsrt.meti.pms.core.Repository;
+import de.hsrt.meti.pms.gens.FilterFixtures;
 import de.hsrt.meti.pms.gens.Generators;
 
 
@@ -103,4 +110,59 @@ public final class Tests
     );
   }
 
+
+  private static Patient withNameBirthDateCity(String familyName, LocalDate birthDate, String city){
+    var p = Generators.patient();
+    var address = new Address(p.address().street(),p.address().house(),p.address().postalCode(),city);
+    return new Patient(p.id(),p.gender(),p.givenName(),familyName,birthDate,p.dateOfDeath(),p.healthInsurance(),address,p.lastUpdate());
+  }
+
+
+  // Matches and near misses of each criterion, including the bounds of the period and case-sensitivity
+  @Test
+  public void testPatientFilterQuery() throws Exception {
+
+    var filter =
+      new Patient.Filter(
+        Optional.empty(),
+        Optional.of("mann"),
+        Optional.of(new Period<>(LocalDate.of(1950,1,1),Optional.of(LocalDate.of(2000,12,31)))),
+        Optional.of(new Address.Filter(Optional.empty(),Optional.of("en")))
+      );
+
+    var patients =
+      List.of(
+        withNameBirthDateCity("Hofmann",LocalDate.of(1970,6,15),"Bremen"),
+        withNameBirthDateCity("Zimmermann",LocalDate.of(1950,1,1),"Reutlingen"),
+        withNameBirthDateCity("Neumann",LocalDate.of(2000,12,31),"Tuebingen"),
+        withNameBirthDateCity("Mannheimer",LocalDate.of(1970,6,15),"Bremen"),
+        withNameBirthDateCity("Hofmann",LocalDate.of(1949,12,31),"Bremen"),
+        withNameBirthDateCity("Hofmann",LocalDate.of(2001,1,1),"Bremen"),
+        withNameBirthDateCity("Hofmann",LocalDate.of(1970,6,15),"Berlin"),
+        withNameBirthDateCity("Hofmann",LocalDate.of(1970,6,15),"ESSEN")
+      );
+    for (var patient : patients) repo.save(patient);
+
+    var ids = patients.stream().map(Patient::id).collect(toSet());
+
+    var expected = patients.stream().filter(filter::matches).map(Patient::id).collect(toSet());
+    assertEquals(3, expected.size());
+
+    assertEquals(
+      expected,
+      repo.findPatients(filter).stream().map(Patient::id).filter(ids::contains).collect(toSet())
+    );
+  }
+
+
+  // Same results as Patient.Filter.matches(...) on the saved Patients
+  @Test
+  public void testFilterSemantics() throws Exception {
+
+    var patients = Stream.generate(Generators::patient).limit(500).toList();
+    for (var patient : patients) repo.save(patient);
+
+    FilterFixtures.assertSameResults(patients,repo::findPatients);
+  }
+
 }
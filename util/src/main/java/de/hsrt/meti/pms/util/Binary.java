@@ -0,0 +1,306 @@
+package de.hsrt.meti.pms.util;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.UUID;
+
+
+/*
+  Primitives of a compact binary encoding, for logs, caches and transfer between nodes:
+
+  - Integers as varints (7 bits per byte, least significant group first, high bit set on all but the last byte),
+    signed ones zigzag-encoded first, so that small negative values are short, too.
+  - Strings as varint byte length followed by UTF-8 bytes.
+  - Dates as epoch day, Instants as epoch second and nanos, enums as ordinal, all as varints.
+  - IDs as tag byte followed by 16 bytes for UUIDs, 12 bytes for (hex) MongoDB ObjectIds, or else as string.
+
+  Writer and Reader are reusable (reset(...)), so that encoding into and decoding from them
+  doesn't allocate beyond the resulting objects, once their buffers have grown to the record size.
+  They are not thread-safe: use one per thread.
+*/
+public final class Binary
+{
+
+  private Binary(){}
+
+
+  private static final byte ID_STRING   = 0;
+  private static final byte ID_UUID     = 1;
+  private static final byte ID_OBJECTID = 2;
+
+  private static final HexFormat HEX = HexFormat.of();
+
+
+  private static boolean isUUID(String id){
+    // Only the canonical (lower case) form, which is decoded to the same string again
+    if (id.length() != 36) return false;
+    for (int i = 0; i < 36; i++){
+      var c = id.charAt(i);
+      var valid = (i == 8 || i == 13 || i == 18 || i == 23) ? c == '-' : isHexDigit(c);
+      if (!valid) return false;
+    }
+    return true;
+  }
+
+  private static boolean isObjectId(String id){
+    if (id.length() != 24) return false;
+    for (int i = 0; i < 24; i++){
+      if (!isHexDigit(id.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  private static boolean isHexDigit(char c){
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+  }
+
+
+
+  public static final class Writer
+  {
+    private byte[] buf;
+    private int pos = 0;
+
+
+    public Writer(){
+      this(256);
+    }
+
+    public Writer(int capacity){
+      this.buf = new byte[capacity];
+    }
+
+
+    public Writer reset(){
+      pos = 0;
+      return this;
+    }
+
+    public int size(){
+      return pos;
+    }
+
+    public byte[] toByteArray(){
+      return Arrays.copyOf(buf,pos);
+    }
+
+    public void writeTo(ByteBuffer target){
+      target.put(buf,0,pos);
+    }
+
+
+    private void ensure(int n){
+      if (pos + n > buf.length) buf = Arrays.copyOf(buf,Math.max(2 * buf.length,pos + n));
+    }
+
+
+    public Writer putByte(int b){
+      ensure(1);
+      buf[pos++] = (byte) b;
+      return this;
+    }
+
+    public Writer putBytes(byte[] bytes){
+      ensure(bytes.length);
+      System.arraycopy(bytes,0,buf,pos,bytes.length);
+      pos += bytes.length;
+      return this;
+    }
+
+
+    // Unsigned varint
+    public Writer putVarInt(int value){
+      ensure(5);
+      while ((value & ~0x7F) != 0){
+        buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      return this;
+    }
+
+    public Writer putVarLong(long value){
+      ensure(10);
+      while ((value & ~0x7FL) != 0){
+        buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      return this;
+    }
+
+    public Writer putSignedVarInt(int value){
+      return putVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public Writer putSignedVarLong(long value){
+      return putVarLong((value << 1) ^ (value >> 63));
+    }
+
+
+    public Writer putString(String s){
+
+      // ASCII (as most values are) is copied char by char, without intermediate byte array
+      var ascii = true;
+      for (int i = 0; i < s.length() && ascii; i++) ascii = s.charAt(i) < 0x80;
+
+      if (ascii){
+        putVarInt(s.length());
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) buf[pos++] = (byte) s.charAt(i);
+        return this;
+      }
+
+      var bytes = s.getBytes(StandardCharsets.UTF_8);
+      putVarInt(bytes.length);
+      return putBytes(bytes);
+    }
+
+
+    public Writer putDate(LocalDate date){
+      return putSignedVarLong(date.toEpochDay());
+    }
+
+    public Writer putInstant(Instant instant){
+      putSignedVarLong(instant.getEpochSecond());
+      return putVarInt(instant.getNano());
+    }
+
+    public Writer putEnum(Enum<?> value){
+      return putVarInt(value.ordinal());
+    }
+
+
+    public Writer putId(String id){
+      if (isUUID(id)){
+        var uuid = UUID.fromString(id);
+        ensure(17);
+        buf[pos++] = ID_UUID;
+        putLong(uuid.getMostSignificantBits());
+        putLong(uuid.getLeastSignificantBits());
+        return this;
+      }
+      if (isObjectId(id)){
+        putByte(ID_OBJECTID);
+        return putBytes(HEX.parseHex(id));
+      }
+      putByte(ID_STRING);
+      return putString(id);
+    }
+
+    private void putLong(long value){
+      for (int shift = 56; shift >= 0; shift -= 8) buf[pos++] = (byte) (value >>> shift);
+    }
+  }
+
+
+
+  public static final class Reader
+  {
+    private ByteBuffer buf;
+
+    // Reused for decoding strings, grown as needed
+    private byte[] bytes = new byte[256];
+
+
+    public Reader(){
+      this(ByteBuffer.allocate(0));
+    }
+
+    public Reader(ByteBuffer buf){
+      this.buf = buf;
+    }
+
+
+    // Read from the buffer's position on, advancing it
+    public Reader reset(ByteBuffer buf){
+      this.buf = buf;
+      return this;
+    }
+
+
+    public int getByte(){
+      return buf.get();
+    }
+
+    public int peekByte(){
+      return buf.get(buf.position());
+    }
+
+
+    public int getVarInt(){
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7){
+        var b = buf.get();
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) return value;
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public long getVarLong(){
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7){
+        var b = buf.get();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) return value;
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public int getSignedVarInt(){
+      var v = getVarInt();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    public long getSignedVarLong(){
+      var v = getVarLong();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+
+    public String getString(){
+      var length = getVarInt();
+      if (length > bytes.length) bytes = new byte[Math.max(2 * bytes.length,length)];
+      buf.get(bytes,0,length);
+      return new String(bytes,0,length,StandardCharsets.UTF_8);
+    }
+
+    public void skipString(){
+      var length = getVarInt();
+      buf.position(buf.position() + length);
+    }
+
+
+    public LocalDate getDate(){
+      return LocalDate.ofEpochDay(getSignedVarLong());
+    }
+
+    public Instant getInstant(){
+      return Instant.ofEpochSecond(getSignedVarLong(),getVarInt());
+    }
+
+    public <E extends Enum<E>> E getEnum(E[] values){
+      return values[getVarInt()];
+    }
+
+
+    public String getId(){
+      return switch (buf.get()){
+        case ID_UUID     -> new UUID(buf.getLong(),buf.getLong()).toString();
+        case ID_OBJECTID -> {
+          buf.get(bytes,0,12);
+          yield HEX.formatHex(bytes,0,12);
+        }
+        case ID_STRING   -> getString();
+        default          -> throw new IllegalArgumentException("Unknown ID tag");
+      };
+    }
+  }
+
+}
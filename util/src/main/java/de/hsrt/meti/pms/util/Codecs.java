@@ -0,0 +1,236 @@
+package de.hsrt.meti.pms.util;
+
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Optional;
+import de.hsrt.meti.pms.core.*;
+
+
+/*
+  Binary encoding of domain objects, based on Binary (see there for the encoding of field values).
+
+  Each record starts with the schema version, followed by the ID, so that the ID can be read without
+  decoding the whole record. Absent Optionals are marked in a bitmask, and then left out:
+
+  Patient:      version, id, flags (dateOfDeath), gender, givenName, familyName, birthDate, [dateOfDeath],
+                healthInsurance, street, house, postalCode, city, lastUpdate
+  Diagnosis:    version, id, patient, recordedOn (date, nano of day), coding, lastUpdate
+  Prescription: version, id, patient, diagnosis, recordedOn (date, nano of day), medication, lastUpdate
+  Coding:       flags (display, version), code, [display], system, [version]
+
+  The encode/decode methods taking byte arrays and ByteBuffers use a Writer/Reader per thread.
+*/
+public final class Codecs
+{
+
+  private Codecs(){}
+
+
+  public static final int SCHEMA_VERSION = 1;
+
+  private static final Gender[] GENDERS = Gender.values();
+
+  private static final ThreadLocal<Binary.Writer> WRITER = ThreadLocal.withInitial(Binary.Writer::new);
+  private static final ThreadLocal<Binary.Reader> READER = ThreadLocal.withInitial(Binary.Reader::new);
+
+
+  private static void checkVersion(Binary.Reader in){
+    var version = in.getByte();
+    if (version != SCHEMA_VERSION) throw new IllegalArgumentException("Unsupported schema version " + version);
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Patient
+
+  private static final int DATE_OF_DEATH = 1;
+
+
+  public static Binary.Writer encode(Patient patient, Binary.Writer out){
+    out.putByte(SCHEMA_VERSION);
+    out.putId(patient.id().value());
+    out.putByte(patient.dateOfDeath().isPresent() ? DATE_OF_DEATH : 0);
+    out.putEnum(patient.gender());
+    out.putString(patient.givenName());
+    out.putString(patient.familyName());
+    out.putDate(patient.birthDate());
+    patient.dateOfDeath().ifPresent(out::putDate);
+    out.putString(patient.healthInsurance());
+    out.putString(patient.address().street());
+    out.putString(patient.address().house());
+    out.putString(patient.address().postalCode());
+    out.putString(patient.address().city());
+    out.putInstant(patient.lastUpdate());
+    return out;
+  }
+
+
+  public static Patient decodePatient(Binary.Reader in){
+    checkVersion(in);
+    var id    = in.getId();
+    var flags = in.getByte();
+    return new Patient(
+      new Id<>(id),
+      in.getEnum(GENDERS),
+      in.getString(),
+      in.getString(),
+      in.getDate(),
+      (flags & DATE_OF_DEATH) != 0 ? Optional.of(in.getDate()) : Optional.empty(),
+      in.getString(),
+      new Address(
+        in.getString(),
+        in.getString(),
+        in.getString(),
+        in.getString()
+      ),
+      in.getInstant()
+    );
+  }
+
+
+  public static byte[] encode(Patient patient){
+    return encode(patient,WRITER.get().reset()).toByteArray();
+  }
+
+  // Decode the Patient starting at the buffer's position, advancing it
+  public static Patient decodePatient(ByteBuffer buf){
+    return decodePatient(READER.get().reset(buf));
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // IDs
+
+  // An ID on its own, e.g. of a deleted object, encoded like the start of a record
+  public static byte[] encode(Id<?> id){
+    var out = WRITER.get().reset();
+    out.putByte(SCHEMA_VERSION);
+    out.putId(id.value());
+    return out.toByteArray();
+  }
+
+  // Decode only the ID at the buffer's position (the start of a record or encoded ID), advancing it
+  public static <T> Id<T> decodeId(ByteBuffer buf){
+    var in = READER.get().reset(buf);
+    checkVersion(in);
+    return new Id<>(in.getId());
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Coding
+
+  private static final int DISPLAY = 1;
+  private static final int VERSION = 1 << 1;
+
+
+  public static Binary.Writer encode(Coding coding, Binary.Writer out){
+    out.putByte((coding.display().isPresent() ? DISPLAY : 0) | (coding.version().isPresent() ? VERSION : 0));
+    out.putString(coding.code());
+    coding.display().ifPresent(out::putString);
+    out.putString(coding.system());
+    coding.version().ifPresent(out::putString);
+    return out;
+  }
+
+
+  public static Coding decodeCoding(Binary.Reader in){
+    var flags = in.getByte();
+    return new Coding(
+      in.getString(),
+      (flags & DISPLAY) != 0 ? Optional.of(in.getString()) : Optional.empty(),
+      in.getString(),
+      (flags & VERSION) != 0 ? Optional.of(in.getString()) : Optional.empty()
+    );
+  }
+
+
+  private static void putDateTime(Binary.Writer out, LocalDateTime dateTime){
+    out.putDate(dateTime.toLocalDate());
+    out.putVarLong(dateTime.toLocalTime().toNanoOfDay());
+  }
+
+  private static LocalDateTime getDateTime(Binary.Reader in){
+    return LocalDateTime.of(in.getDate(),LocalTime.ofNanoOfDay(in.getVarLong()));
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Diagnosis
+
+  public static Binary.Writer encode(Diagnosis diagnosis, Binary.Writer out){
+    out.putByte(SCHEMA_VERSION);
+    out.putId(diagnosis.id().value());
+    out.putId(diagnosis.patient().value());
+    putDateTime(out,diagnosis.recordedOn());
+    encode(diagnosis.coding(),out);
+    out.putInstant(diagnosis.lastUpdate());
+    return out;
+  }
+
+
+  public static Diagnosis decodeDiagnosis(Binary.Reader in){
+    checkVersion(in);
+    return new Diagnosis(
+      new Id<>(in.getId()),
+      new Id<>(in.getId()),
+      getDateTime(in),
+      decodeCoding(in),
+      in.getInstant()
+    );
+  }
+
+
+  public static byte[] encode(Diagnosis diagnosis){
+    return encode(diagnosis,WRITER.get().reset()).toByteArray();
+  }
+
+  public static Diagnosis decodeDiagnosis(ByteBuffer buf){
+    return decodeDiagnosis(READER.get().reset(buf));
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Prescription
+
+  public static Binary.Writer encode(Prescription prescription, Binary.Writer out){
+    out.putByte(SCHEMA_VERSION);
+    out.putId(prescription.id().value());
+    out.putId(prescription.patient().value());
+    out.putId(prescription.diagnosis().value());
+    putDateTime(out,prescription.recordedOn());
+    encode(prescription.medication(),out);
+    out.putInstant(prescription.lastUpdate());
+    return out;
+  }
+
+
+  public static Prescription decodePrescription(Binary.Reader in){
+    checkVersion(in);
+    return new Prescription(
+      new Id<>(in.getId()),
+      new Id<>(in.getId()),
+      new Id<>(in.getId()),
+      getDateTime(in),
+      decodeCoding(in),
+      in.getInstant()
+    );
+  }
+
+
+  public static byte[] encode(Prescription prescription){
+    return encode(prescription,WRITER.get().reset()).toByteArray();
+  }
+
+  public static Prescription decodePrescription(ByteBuffer buf){
+    return decodePrescription(READER.get().reset(buf));
+  }
+
+}
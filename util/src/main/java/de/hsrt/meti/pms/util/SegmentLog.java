@@ -0,0 +1,245 @@
+package de.hsrt.meti.pms.util;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+
+/*
+  Append-only log of records in fixed-size, memory-mapped segment files:
+
+  - Each segment starts with [int magic][int format version], the magic telling what the records are.
+  - Each record is [int length][int CRC32][byte type][body]; a length of 0 marks the end of written data in a segment.
+    A record that doesn't fit into the rest of the last segment starts a new segment.
+  - Records are addressed by their location (segment number, offset), and read in place from the mapping.
+  - On opening, the records of all segments are passed to a Recovery callback in log order, which rebuilds
+    the in-memory state from them. Reading stops at the first incomplete or corrupt record, e.g. a partial write on crash:
+    the records after it would be recovered out of sequence, so the rest of its segment is cleared,
+    and later segment files are set aside (renamed to *.discarded). A last segment without header,
+    i.e. created right before a crash, is empty.
+
+  Appends go to the OS page cache through the mapping, so they survive a crash of the process immediately,
+  but only survive a crash of the OS after flush(). The log is not thread-safe: callers serialize appends.
+*/
+public final class SegmentLog
+{
+
+  @FunctionalInterface
+  public static interface Recovery
+  {
+    void accept(byte type, long location, ByteBuffer body);
+  }
+
+
+  private static final int SEGMENT_HEADER = 8; // magic, format version
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int RECORD_HEADER = 9; // length, CRC32, type
+
+
+  private final IntFunction<Path> files;
+  private final int magic;
+  private final long segmentSize;
+
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+  private int writePos;
+  private long recordBytes = 0;
+
+
+  /*
+    Open the log in the segment files numbered 0, 1, ... (as named by files), passing all records to recovery.
+    Without segment files, the log starts with an empty one.
+  */
+  public static SegmentLog open(IntFunction<Path> files, int magic, long segmentSize, Recovery recovery) throws IOException {
+    if (segmentSize > Integer.MAX_VALUE) throw new IllegalArgumentException("Segment size must not exceed 2GB");
+    return new SegmentLog(files,magic,segmentSize,recovery);
+  }
+
+
+  private SegmentLog(IntFunction<Path> files, int magic, long segmentSize, Recovery recovery) throws IOException {
+    this.files = files;
+    this.magic = magic;
+    this.segmentSize = segmentSize;
+
+    for (int n = 0; Files.exists(files.apply(n)); n++){
+      var segment = map(files.apply(n),segmentSize);
+
+      if (!Files.exists(files.apply(n + 1)) && segment.getInt(0) == 0 && segment.getInt(4) == 0){
+        writeHeader(segment);
+      }
+      if (segment.getInt(0) != magic || segment.getInt(4) != FORMAT_VERSION){
+        throw new IOException("Not a segment file of format version " + FORMAT_VERSION + ": " + files.apply(n));
+      }
+      segments.add(segment);
+      writePos = recover(n,segment,recovery);
+      recordBytes += writePos - SEGMENT_HEADER;
+
+      if (writePos + 4 <= segment.capacity() && segment.getInt(writePos) != 0){
+        // A corrupt record (as opposed to the end of written data)
+        clear(segment,writePos,segment.capacity());
+        discardFrom(n + 1);
+        break;
+      }
+      // Remains of a partially written record, if any
+      clear(segment,writePos,writePos + RECORD_HEADER);
+    }
+
+    if (segments.isEmpty()){
+      addSegment();
+    }
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Segment files
+
+  private static MappedByteBuffer map(Path file, long size) throws IOException {
+    try (var channel = FileChannel.open(file,CREATE,READ,WRITE)){
+      // The mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE,0,Math.max(size,channel.size()));
+    }
+  }
+
+  private void writeHeader(MappedByteBuffer segment){
+    segment.putInt(0,magic);
+    segment.putInt(4,FORMAT_VERSION);
+  }
+
+  private void addSegment() throws IOException {
+    var segment = map(files.apply(segments.size()),segmentSize);
+    writeHeader(segment);
+    segments.add(segment);
+    writePos = SEGMENT_HEADER;
+  }
+
+  private void discardFrom(int n) throws IOException {
+    for (; Files.exists(files.apply(n)); n++){
+      var file = files.apply(n);
+      Files.move(file,file.resolveSibling(file.getFileName() + ".discarded"),REPLACE_EXISTING);
+    }
+  }
+
+  // Number of segment files
+  public int segmentCount(){
+    return segments.size();
+  }
+
+  // Total size of the records in the log (recovered and appended), including their headers
+  public long recordBytes(){
+    return recordBytes;
+  }
+
+
+  // Pass the valid records of a segment to recovery, returning the end of valid data
+  private static int recover(int n, MappedByteBuffer segment, Recovery recovery){
+
+    var pos = SEGMENT_HEADER;
+
+    while (pos + RECORD_HEADER <= segment.capacity()){
+
+      var length = segment.getInt(pos);
+      // Checked against the remaining capacity, as pos + 8 + length may overflow for a corrupt length
+      if (length <= 0 || length > segment.capacity() - pos - 8 || crc(segment,pos + 8,length) != segment.getInt(pos + 4)){
+        break;
+      }
+
+      recovery.accept(
+        segment.get(pos + 8),
+        location(n,pos),
+        segment.slice(pos + RECORD_HEADER,length - 1)
+      );
+
+      pos += 8 + length;
+    }
+
+    return pos;
+  }
+
+
+  private static void clear(MappedByteBuffer segment, int from, int to){
+    for (int i = from; i < segment.capacity() && i < to; i++) segment.put(i,(byte) 0);
+  }
+
+
+
+  // --------------------------------------------------------------------------
+  // Records
+
+  private static long location(int segment, int offset){
+    return ((long) segment << 32) | offset;
+  }
+
+  private static int crc(ByteBuffer buf, int from, int length){
+    var crc = new CRC32();
+    crc.update(buf.duplicate().position(from).limit(from + length));
+    return (int) crc.getValue();
+  }
+
+
+  // Body of the record at the location, read in place
+  public ByteBuffer read(long location){
+    var segment = segments.get((int) (location >>> 32));
+    var pos = (int) location;
+    return segment.slice(pos + RECORD_HEADER,segment.getInt(pos) - 1);
+  }
+
+
+  // Size of the record at the location in the segment, including its header
+  public int recordSize(long location){
+    return 8 + segments.get((int) (location >>> 32)).getInt((int) location);
+  }
+
+
+  // Append a record, returning its location
+  public long append(byte type, byte[] body) throws IOException {
+    return append(type,ByteBuffer.wrap(body));
+  }
+
+
+  // Append a record with the remaining bytes of body, returning its location
+  public long append(byte type, ByteBuffer body) throws IOException {
+
+    var length = 1 + body.remaining();
+
+    if (SEGMENT_HEADER + 8 + length > segmentSize) throw new IllegalArgumentException("Record too large for segment size " + segmentSize);
+
+    if (writePos + 8 + length > segments.get(segments.size() - 1).capacity()){
+      addSegment();
+    }
+
+    var n = segments.size() - 1;
+    var segment = segments.get(n);
+    var pos = writePos;
+
+    // Write the length last, as it marks the record as present
+    segment.put(pos + 8,type);
+    segment.put(pos + RECORD_HEADER,body,body.position(),body.remaining());
+    segment.putInt(pos + 4,crc(segment,pos + 8,length));
+    segment.putInt(pos,length);
+
+    writePos += 8 + length;
+    recordBytes += 8 + length;
+
+    return location(n,pos);
+  }
+
+
+  // Force written data to the storage device
+  public void flush(){
+    segments.forEach(MappedByteBuffer::force);
+  }
+
+}
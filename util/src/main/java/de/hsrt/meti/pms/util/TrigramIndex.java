@@ -0,0 +1,282 @@
+package de.hsrt.meti.pms.util;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.stream.IntStream;
+
+
+/*
+  Trigram (3-gram) index for substring search over String attributes of int-numbered documents (rows).
+
+  Each value is split into its (lower-cased) trigrams, e.g. "Maier" -> "mai","aie","ier",
+  and each trigram is mapped to the posting list of documents containing it.
+  A substring query is answered by intersecting the posting lists of the query's trigrams.
+  This yields candidates, i.e. a superset of the actual matches (trigrams might occur in another order,
+  case is ignored), so callers still have to check candidates against the actual criterion.
+  Queries shorter than 3 characters can't be answered by the index.
+
+  Posting lists are stored compactly as delta- and varint-encoded byte arrays (typically 1-2 bytes per entry).
+  Incremental updates are first collected in small per-posting buffers and merged into the
+  encoded list once these grow too large.
+
+  Not thread-safe: Synchronization is up to the caller.
+*/
+public final class TrigramIndex
+{
+
+  public static final int N = 3;
+
+  private final Map<Long,Posting> postings = new HashMap<>();
+
+
+  // Precondition: doc is not yet indexed with this value (otherwise use update(...))
+  public void add(int doc, String value){
+    for (long gram : trigrams(value)){
+      postings.computeIfAbsent(gram, g -> new Posting()).add(doc);
+    }
+  }
+
+
+  // Precondition: doc is indexed with this value
+  public void remove(int doc, String value){
+    for (long gram : trigrams(value)){
+      var posting = postings.get(gram);
+      if (posting != null){
+        posting.remove(doc);
+        if (posting.size() == 0) postings.remove(gram);
+      }
+    }
+  }
+
+
+  public void update(int doc, Optional<String> previous, String value){
+    if (previous.isPresent()){
+      if (previous.get().equals(value)) return;
+      remove(doc,previous.get());
+    }
+    add(doc,value);
+  }
+
+
+  // Upper bound for the number of candidates for the given substring, if the index can answer it
+  public OptionalInt estimate(String part){
+    var grams = trigrams(part);
+    if (grams.length == 0) return OptionalInt.empty();
+
+    var min = Integer.MAX_VALUE;
+    for (long gram : grams){
+      var posting = postings.get(gram);
+      min = Math.min(min, posting == null ? 0 : posting.size());
+    }
+    return OptionalInt.of(min);
+  }
+
+
+  // Sorted candidate documents for the given substring, if the index can answer it
+  public Optional<int[]> candidates(String part){
+
+    var grams = trigrams(part);
+    if (grams.length == 0) return Optional.empty();
+
+    var lists =
+      Arrays.stream(grams)
+        .mapToObj(postings::get)
+        .toArray(Posting[]::new);
+
+    if (Arrays.stream(lists).anyMatch(p -> p == null)) return Optional.of(new int[0]);
+
+    // Start from the shortest list, so that intermediate results are as small as possible
+    Arrays.sort(lists, (p,q) -> Integer.compare(p.size(),q.size()));
+
+    var result = lists[0].docs();
+    for (int i = 1; i < lists.length && result.length > 0; i++){
+      result = intersect(result,lists[i].docs());
+    }
+    return Optional.of(result);
+  }
+
+
+  // Approximate heap usage of the posting lists, in bytes
+  public long memoryUsage(){
+    return postings.values().stream().mapToLong(Posting::memoryUsage).sum();
+  }
+
+
+
+  // Pack each (lower-case) trigram into a long: 3 chars x 16 bits
+  static long[] trigrams(String value){
+
+    var s = value.toLowerCase();
+    if (s.length() < N) return new long[0];
+
+    return
+      IntStream.rangeClosed(0, s.length() - N)
+        .mapToLong(i -> ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2))
+        .distinct()
+        .toArray();
+  }
+
+
+  private static int[] intersect(int[] a, int[] b){
+    var result = new int[Math.min(a.length,b.length)];
+    int i = 0, j = 0, n = 0;
+    while (i < a.length && j < b.length){
+      if (a[i] < b[j]) i++;
+      else if (a[i] > b[j]) j++;
+      else { result[n++] = a[i]; i++; j++; }
+    }
+    return Arrays.copyOf(result,n);
+  }
+
+
+
+  /*
+    Posting list: Sorted doc numbers, encoded as varint gaps to the respective previous doc number,
+    plus sorted buffers of pending additions and removals not yet merged into the encoded list.
+
+    Buffers are merged once they exceed 1/8 of the encoded list, so the cost of merging stays amortized constant.
+    Additions beyond the last encoded doc, the usual case for newly indexed documents, are appended
+    to the encoded list without re-encoding it.
+  */
+  private static final class Posting
+  {
+
+    private static final int MIN_PENDING = 32;
+
+    private byte[] encoded = new byte[8];
+    private int encodedLength = 0;
+    private int encodedCount = 0;
+    private int lastEncoded = 0;
+
+    private int[] added = new int[4];
+    private int addedCount = 0;
+
+    private int[] removed = new int[4];
+    private int removedCount = 0;
+
+
+    int size(){
+      return encodedCount + addedCount - removedCount;
+    }
+
+
+    void add(int doc){
+      var r = Arrays.binarySearch(removed,0,removedCount,doc);
+      if (r >= 0){
+        removedCount = delete(removed,removedCount,r);
+        return;
+      }
+      var a = Arrays.binarySearch(added,0,addedCount,doc);
+      if (a < 0){
+        added = insert(added,addedCount++,-(a + 1),doc);
+        mergeIfNeeded();
+      }
+    }
+
+
+    // Precondition: doc is contained in this posting, i.e. was added before
+    void remove(int doc){
+      var a = Arrays.binarySearch(added,0,addedCount,doc);
+      if (a >= 0){
+        addedCount = delete(added,addedCount,a);
+        return;
+      }
+      var r = Arrays.binarySearch(removed,0,removedCount,doc);
+      if (r < 0){
+        removed = insert(removed,removedCount++,-(r + 1),doc);
+        mergeIfNeeded();
+      }
+    }
+
+
+    int[] docs(){
+      var docs = new int[size()];
+      int n = 0, i = 0, r = 0;
+      var pos = new int[]{ 0 };
+      var doc = 0;
+      for (int k = 0; k < encodedCount; k++){
+        doc += readVarint(encoded,pos);
+        while (i < addedCount && added[i] < doc) docs[n++] = added[i++];
+        while (r < removedCount && removed[r] < doc) r++;
+        if (r < removedCount && removed[r] == doc) r++;
+        else docs[n++] = doc;
+      }
+      while (i < addedCount) docs[n++] = added[i++];
+      return docs;
+    }
+
+
+    long memoryUsage(){
+      return 64L + encoded.length + 4L * (added.length + removed.length);
+    }
+
+
+    private void mergeIfNeeded(){
+      if (addedCount + removedCount > Math.max(MIN_PENDING, encodedCount >> 3)) merge();
+    }
+
+
+    private void merge(){
+
+      var appendable = removedCount == 0 && (encodedCount == 0 || added[0] > lastEncoded);
+
+      var docs = appendable ? Arrays.copyOf(added,addedCount) : docs();
+
+      if (!appendable){
+        encodedLength = 0;
+        encodedCount = 0;
+        lastEncoded = 0;
+      }
+
+      for (int doc : docs){
+        if (encodedLength + 5 > encoded.length) encoded = Arrays.copyOf(encoded,encoded.length * 2 + 5);
+        encodedLength = writeVarint(encoded,encodedLength,doc - lastEncoded);
+        lastEncoded = doc;
+      }
+      encodedCount += docs.length;
+
+      addedCount = 0;
+      removedCount = 0;
+    }
+
+
+    private static int[] insert(int[] array, int size, int at, int value){
+      var result = size == array.length ? Arrays.copyOf(array,size * 2) : array;
+      System.arraycopy(result,at,result,at + 1,size - at);
+      result[at] = value;
+      return result;
+    }
+
+    private static int delete(int[] array, int size, int at){
+      System.arraycopy(array,at + 1,array,at,size - at - 1);
+      return size - 1;
+    }
+
+  }
+
+
+  private static int writeVarint(byte[] bytes, int pos, int value){
+    while ((value & ~0x7F) != 0){
+      bytes[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[pos++] = (byte) value;
+    return pos;
+  }
+
+  private static int readVarint(byte[] bytes, int[] pos){
+    int value = 0, shift = 0;
+    byte b;
+    do {
+      b = bytes[pos[0]++];
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+}